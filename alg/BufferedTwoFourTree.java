@@ -0,0 +1,674 @@
+package alg;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+/**
+ * A set of values in a 2-4 tree that is optimized for adding many values, in the style of a
+ * buffer tree or B^epsilon tree. Every node above the lowest internal nodes has a buffer of values
+ * that were added, but not yet moved down to their place in the tree. An add only inserts the value
+ * in the buffer of the root. When a buffer holds more than bufferSize values, they are all moved down
+ * to the children at once: into the buffers of the children, which may overflow in turn, or into
+ * the lowest internal nodes, which are split as often as needed, and the splits may cascade upwards.
+ * Each value is moved down in batches, so the nodes of the lower levels, which are mostly not in the
+ * cache, are visited once per batch instead of once per add.
+ *
+ * The buffers are kept sorted, and contains searches the buffer of each node on the path as well as
+ * its values. Outside of the buffers, the tree has the shape of a 2-4 tree, which verifyInvariants
+ * checks. Values cannot be removed. Whether an added value was already present is only known when
+ * it reaches its place, so size flushes all buffers first.
+ */
+public class BufferedTwoFourTree<K extends Comparable<K>> {
+
+    private static class Node<K extends Comparable<K>> {
+        /**
+         * The external node. External nodes hold no values or children, so every external
+         * position in every tree refers to this single immutable instance.
+         */
+        private static final Node<?> EXTERNAL = new Node<>(true);
+
+        /**
+         * Maximum number of values in a node.
+         */
+        private static final int MAX_VALUES = 3;
+
+        /**
+         * Values in the node, in ascending order. Only the first count entries are used.
+         */
+        private final K[] values;
+
+        /**
+         * Children of the node. The child at index i should be followed for values smaller than
+         * values[i], the child at index count for values larger than the largest value in the node.
+         */
+        private final Node<K>[] children;
+
+        /**
+         * Number of values in the node.
+         */
+        private int count = 0;
+
+        /**
+         * Values that were added below this node, but not moved down yet, in ascending order. Only
+         * the first bufferCount entries are used. Null while the buffer is empty, and always null in
+         * the lowest internal nodes.
+         */
+        private K[] buffer = null;
+
+        /**
+         * Number of values in the buffer.
+         */
+        private int bufferCount = 0;
+
+        /**
+         * Whether this node is an external node.
+         */
+        private final boolean isExternal;
+
+        /**
+         * Create the external node.
+         */
+        private Node(boolean isExternal) {
+            values = null;
+            children = null;
+            this.isExternal = isExternal;
+        }
+
+        /**
+         * Create a new internal node without any values.
+         */
+        @SuppressWarnings("unchecked")
+        Node() {
+            values = (K[]) new Comparable[MAX_VALUES];
+            children = (Node<K>[]) new Node[MAX_VALUES + 1];
+            isExternal = false;
+        }
+
+        /**
+         * Get the external node.
+         */
+        @SuppressWarnings("unchecked")
+        static <K extends Comparable<K>> Node<K> external() {
+            return (Node<K>) EXTERNAL;
+        }
+
+        /**
+         * Replace the values and children of this node with a range of values and their children.
+         * @param source Array with the values.
+         * @param from Index of the first value.
+         * @param count Number of values, at most MAX_VALUES.
+         * @param sourceChildren Array with the children, where the child at index from + i belongs
+         *                       to the left of source[from + i], or null for a lowest internal node.
+         */
+        void set(K[] source, int from, int count, Node<K>[] sourceChildren) {
+            System.arraycopy(source, from, values, 0, count);
+            Arrays.fill(values, count, MAX_VALUES, null);
+            if (sourceChildren == null) {
+                Arrays.fill(children, 0, count + 1, external());
+            } else {
+                System.arraycopy(sourceChildren, from, children, 0, count + 1);
+            }
+            Arrays.fill(children, count + 1, MAX_VALUES + 1, null);
+            this.count = count;
+        }
+
+        /**
+         * Whether the children of this node are external, so that it has no buffer.
+         */
+        boolean isLowest() {
+            return children[0].isExternal();
+        }
+
+        /**
+         * Find the given value in this node.
+         * @param value Value to look for.
+         * @return Index of the value, or (-(index of the child to follow) - 1) if it is not in this node.
+         */
+        int indexOf(K value) {
+            return search(values, count, value);
+        }
+
+        public boolean isExternal() {
+            return isExternal;
+        }
+
+        @Override
+        public String toString() {
+            if (isExternal) {
+                return "[]";
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append('[');
+            if (bufferCount > 0) {
+                sb.append(Arrays.toString(Arrays.copyOf(buffer, bufferCount))).append(' ');
+            }
+            for (int i = 0; i <= count; i++) {
+                sb.append(children[i]);
+                if (i < count) {
+                    sb.append(' ').append(values[i]).append(' ');
+                }
+            }
+            sb.append(']');
+            return sb.toString();
+        }
+
+        /**
+         * Verify the invariants for this node in the 2-4 tree and its buffer, and return the height
+         * of the node.
+         * @param min All values must be larger than this value, or null if there is no lower bound.
+         * @param max All values must be smaller than this value, or null if there is no upper bound.
+         * @param bufferSize The maximum number of values in a buffer.
+         * @return Height of the node.
+         * @throws IllegalStateException If the node violates any invariant.
+         */
+        int verifyInvariants(K min, K max, int bufferSize) {
+            if (isExternal) {
+                if (this != EXTERNAL) {
+                    throw new IllegalStateException("External node that is not the shared external node");
+                }
+                return 0;
+            }
+            if (count < 1 || count > MAX_VALUES) {
+                throw new IllegalStateException("2-4 invariant violated (" + (count + 1) + ")");
+            }
+            if (bufferCount > bufferSize || (bufferCount > 0 && isLowest())) {
+                throw new IllegalStateException("Buffer of " + bufferCount + " values in " + this);
+            }
+            for (int i = 0; i < bufferCount; i++) {
+                K low = i == 0 ? min : buffer[i - 1];
+                if (buffer[i] == null || (low != null && low.compareTo(buffer[i]) >= 0)
+                        || (max != null && max.compareTo(buffer[i]) <= 0)) {
+                    throw new IllegalStateException("Buffered value " + buffer[i] + " out of order");
+                }
+            }
+            int height = -1;
+            for (int i = 0; i <= count; i++) {
+                K low = i == 0 ? min : values[i - 1];
+                K high = i == count ? max : values[i];
+                if (i < count && (values[i] == null || (low != null && low.compareTo(values[i]) >= 0))) {
+                    throw new IllegalStateException("Value " + values[i] + " out of order");
+                }
+                if (children[i] == null) {
+                    throw new IllegalStateException("Internal node with null child");
+                }
+                int childHeight = children[i].verifyInvariants(low, high, bufferSize);
+                if (height != -1 && childHeight != height) {
+                    throw new IllegalStateException("Depth not equal (" + childHeight + " and " + height + ")");
+                }
+                height = childHeight;
+            }
+            if (max != null && max.compareTo(values[count - 1]) <= 0) {
+                throw new IllegalStateException("Value " + values[count - 1] + " too large");
+            }
+            return height + 1;
+        }
+    }
+
+    /**
+     * Default maximum number of values in a buffer.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 64;
+
+    private Node<K> root = Node.external();
+
+    /**
+     * Number of values in the nodes, not counting the buffers.
+     */
+    private int size = 0;
+
+    /**
+     * Number of values in all buffers together.
+     */
+    private int buffered = 0;
+
+    /**
+     * Maximum number of values in a buffer before it is flushed.
+     */
+    private final int bufferSize;
+
+    /**
+     * Scratch space for merging values into a buffer or a lowest internal node.
+     */
+    private K[] scratch;
+
+    /**
+     * Create an empty tree with the default buffer size.
+     */
+    public BufferedTwoFourTree() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Create an empty tree.
+     * @param bufferSize The maximum number of values in the buffer of a node. Larger buffers move
+     *                   values down in larger batches, but make contains search longer buffers.
+     */
+    @SuppressWarnings("unchecked")
+    public BufferedTwoFourTree(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be at least 1: " + bufferSize);
+        }
+        this.bufferSize = bufferSize;
+        scratch = (K[]) new Comparable[2 * bufferSize + Node.MAX_VALUES + 2];
+    }
+
+    /**
+     * Find a value in the first count entries of a sorted array, using binary search.
+     * @return Index of the value, or (-(insertion point) - 1) if it is not present.
+     */
+    private static <K extends Comparable<K>> int search(K[] values, int count, K value) {
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = values[mid].compareTo(value);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -lo - 1;
+    }
+
+    /**
+     * Add a value to the tree. If an equal value is present, it is replaced once the new value
+     * reaches it.
+     * @param value The value to add.
+     */
+    public void add(K value) {
+        if (root.isExternal()) {
+            root = new Node<>();
+            root.values[0] = value;
+            Arrays.fill(root.children, 0, 2, Node.external());
+            root.count = 1;
+            size = 1;
+            return;
+        }
+        if (root.isLowest()) {
+            @SuppressWarnings("unchecked")
+            K[] added = (K[]) new Comparable[] {value};
+            List<K> separators = new ArrayList<>();
+            List<Node<K>> nodes = new ArrayList<>();
+            mergeIntoLowest(root, added, 0, 1, separators, nodes);
+            setRoot(separators, nodes);
+            return;
+        }
+        if (root.buffer == null) {
+            root.buffer = newBuffer();
+        }
+        int index = search(root.buffer, root.bufferCount, value);
+        if (index >= 0) {
+            root.buffer[index] = value;
+            return;
+        }
+        index = -index - 1;
+        System.arraycopy(root.buffer, index, root.buffer, index + 1, root.bufferCount - index);
+        root.buffer[index] = value;
+        root.bufferCount++;
+        buffered++;
+        if (root.bufferCount > bufferSize) {
+            flushRoot(false);
+        }
+    }
+
+    /**
+     * Check whether a value is present, in the nodes or in one of the buffers.
+     * @param value The value to look for.
+     * @return Whether the value is present.
+     */
+    public boolean contains(K value) {
+        Node<K> node = root;
+        while (!node.isExternal()) {
+            if (node.bufferCount > 0 && search(node.buffer, node.bufferCount, value) >= 0) {
+                return true;
+            }
+            int index = node.indexOf(value);
+            if (index >= 0) {
+                return true;
+            }
+            node = node.children[-index - 1];
+        }
+        return false;
+    }
+
+    /**
+     * Move all buffered values down to their place in the tree.
+     */
+    public void flush() {
+        if (!root.isExternal() && !root.isLowest()) {
+            flushRoot(true);
+        }
+    }
+
+    /**
+     * Get the number of values. This flushes all buffers, since buffered values may turn out to be
+     * present already.
+     * @return The number of values.
+     */
+    public int size() {
+        flush();
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return root.isExternal();
+    }
+
+    /**
+     * Get the number of values that were added, but are still in a buffer.
+     * @return The number of buffered values.
+     */
+    public int buffered() {
+        return buffered;
+    }
+
+    /**
+     * Get a new, empty buffer.
+     */
+    @SuppressWarnings("unchecked")
+    private K[] newBuffer() {
+        return (K[]) new Comparable[bufferSize + 1];
+    }
+
+    /**
+     * Flush the buffer of the root, and add levels above it if it is split.
+     * @param all Whether to flush all buffers, or only those that overflow.
+     */
+    private void flushRoot(boolean all) {
+        List<K> separators = new ArrayList<>();
+        List<Node<K>> nodes = new ArrayList<>();
+        flush(root, all, separators, nodes);
+        setRoot(separators, nodes);
+    }
+
+    /**
+     * Make a sequence of nodes of equal height the new top of the tree, adding levels above them
+     * until a single node remains.
+     * @param separators The values between the nodes.
+     * @param nodes The nodes.
+     */
+    @SuppressWarnings("unchecked")
+    private void setRoot(List<K> separators, List<Node<K>> nodes) {
+        while (nodes.size() > 1) {
+            K[] values = separators.toArray((K[]) new Comparable[0]);
+            Node<K>[] children = nodes.toArray((Node<K>[]) new Node[0]);
+            separators = new ArrayList<>();
+            nodes = new ArrayList<>();
+            split(values, values.length, children, new Node<>(), separators, nodes);
+        }
+        root = nodes.get(0);
+    }
+
+    /**
+     * Move the buffered values of a node down to its children, flush the buffers of children that
+     * overflow, and split the node if it gets too many values from splits of its children. The
+     * resulting nodes have empty buffers.
+     * @param node The node, which is not a lowest internal node.
+     * @param all Whether to flush the buffers of all descendants, instead of those that overflow.
+     * @param separatorsOut Receives the values between the resulting nodes.
+     * @param nodesOut Receives the resulting nodes.
+     */
+    @SuppressWarnings("unchecked")
+    private void flush(Node<K> node, boolean all, List<K> separatorsOut, List<Node<K>> nodesOut) {
+        K[] messages = node.buffer;
+        int messageCount = node.bufferCount;
+        node.buffer = null;
+        node.bufferCount = 0;
+        buffered -= messageCount;
+
+        List<K> separators = new ArrayList<>(2 * Node.MAX_VALUES);
+        List<Node<K>> nodes = new ArrayList<>(2 * Node.MAX_VALUES + 1);
+        int next = 0;
+        for (int i = 0; i <= node.count; i++) {
+            K high = i < node.count ? node.values[i] : null;
+            int from = next;
+            int cmp = -1;
+            while (next < messageCount && (high == null || (cmp = messages[next].compareTo(high)) < 0)) {
+                next++;
+            }
+            Node<K> child = node.children[i];
+            if (child.isLowest()) {
+                mergeIntoLowest(child, messages, from, next, separators, nodes);
+            } else {
+                if (next > from) {
+                    mergeIntoBuffer(child, messages, from, next);
+                }
+                if (child.bufferCount > bufferSize || all) {
+                    flush(child, all, separators, nodes);
+                } else {
+                    nodes.add(child);
+                }
+            }
+            if (high != null) {
+                if (cmp == 0) {
+                    // A buffered value replaces the equal value in this node.
+                    high = messages[next++];
+                }
+                separators.add(high);
+            }
+        }
+        if (nodes.size() == node.count + 1) {
+            // No child was split, so the node keeps its children, and its values up to replacements.
+            for (int i = 0; i < node.count; i++) {
+                node.values[i] = separators.get(i);
+            }
+            nodesOut.add(node);
+            return;
+        }
+        K[] values = separators.toArray((K[]) new Comparable[0]);
+        Node<K>[] children = nodes.toArray((Node<K>[]) new Node[0]);
+        split(values, values.length, children, node, separatorsOut, nodesOut);
+    }
+
+    /**
+     * Merge a range of sorted values into the buffer of a node. Buffered values replace equal values
+     * that are already in the buffer, since they were added later.
+     */
+    private void mergeIntoBuffer(Node<K> node, K[] messages, int from, int to) {
+        int merged = merge(node.buffer, node.bufferCount, messages, from, to);
+        buffered += merged - node.bufferCount;
+        if (node.buffer == null || merged > node.buffer.length) {
+            node.buffer = Arrays.copyOf(scratch, Math.max(merged, bufferSize + 1));
+        } else {
+            System.arraycopy(scratch, 0, node.buffer, 0, merged);
+        }
+        Arrays.fill(scratch, 0, merged, null);
+        node.bufferCount = merged;
+    }
+
+    /**
+     * Merge a range of sorted values into a lowest internal node, and split it as often as needed.
+     * @param node The lowest internal node.
+     * @param messages Array with the values.
+     * @param from Index of the first value.
+     * @param to Index after the last value.
+     * @param separatorsOut Receives the values between the resulting nodes.
+     * @param nodesOut Receives the resulting nodes.
+     */
+    private void mergeIntoLowest(Node<K> node, K[] messages, int from, int to,
+                                 List<K> separatorsOut, List<Node<K>> nodesOut) {
+        if (from == to) {
+            nodesOut.add(node);
+            return;
+        }
+        int merged = merge(node.values, node.count, messages, from, to);
+        size += merged - node.count;
+        split(scratch, merged, null, node, separatorsOut, nodesOut);
+        Arrays.fill(scratch, 0, merged, null);
+    }
+
+    /**
+     * Merge the first count values of a sorted array with a range of another sorted array into the
+     * scratch space. Where the arrays hold equal values, the one from the range is kept.
+     * @return The number of merged values.
+     */
+    @SuppressWarnings("unchecked")
+    private int merge(K[] values, int count, K[] messages, int from, int to) {
+        int needed = count + to - from;
+        if (needed > scratch.length) {
+            scratch = (K[]) new Comparable[Math.max(needed, 2 * scratch.length)];
+        }
+        int i = 0;
+        int j = from;
+        int merged = 0;
+        while (i < count && j < to) {
+            int cmp = values[i].compareTo(messages[j]);
+            if (cmp < 0) {
+                scratch[merged++] = values[i++];
+            } else {
+                if (cmp == 0) {
+                    i++;
+                }
+                scratch[merged++] = messages[j++];
+            }
+        }
+        while (i < count) {
+            scratch[merged++] = values[i++];
+        }
+        while (j < to) {
+            scratch[merged++] = messages[j++];
+        }
+        return merged;
+    }
+
+    /**
+     * Divide a sequence of values and the children between them over as few nodes with about two
+     * values each as needed, and pass the values between the nodes up.
+     * @param values The values.
+     * @param count The number of values.
+     * @param children The count + 1 children, or null for lowest internal nodes.
+     * @param reuse A node to reuse for the first part.
+     * @param separatorsOut Receives the values between the resulting nodes.
+     * @param nodesOut Receives the resulting nodes.
+     */
+    private static <K extends Comparable<K>> void split(K[] values, int count, Node<K>[] children, Node<K> reuse,
+                                                        List<K> separatorsOut, List<Node<K>> nodesOut) {
+        if (count <= Node.MAX_VALUES) {
+            reuse.set(values, 0, count, children);
+            nodesOut.add(reuse);
+            return;
+        }
+        // Each node takes about two values, and one value goes up between each pair of nodes.
+        int parts = (count + 3) / 3;
+        int inNodes = count - parts + 1;
+        int perNode = inNodes / parts;
+        int extra = inNodes % parts;
+        int next = 0;
+        for (int i = 0; i < parts; i++) {
+            int nodeCount = perNode + (i < extra ? 1 : 0);
+            Node<K> node = i == 0 ? reuse : new Node<>();
+            node.set(values, next, nodeCount, children);
+            nodesOut.add(node);
+            next += nodeCount;
+            if (i < parts - 1) {
+                separatorsOut.add(values[next++]);
+            }
+        }
+    }
+
+    /**
+     * Perform an action for every value, in ascending order. This flushes all buffers first.
+     * @param action The action.
+     */
+    public void forEach(Consumer<? super K> action) {
+        flush();
+        if (root.isExternal()) {
+            return;
+        }
+        // For each node on the path, the index of the next child to visit.
+        int[] next = new int[8];
+        @SuppressWarnings("unchecked")
+        Node<K>[] nodes = (Node<K>[]) new Node[8];
+        nodes[0] = root;
+        int depth = 0;
+        while (depth >= 0) {
+            Node<K> node = nodes[depth];
+            int i = next[depth];
+            if (i > node.count) {
+                depth--;
+                continue;
+            }
+            if (i > 0) {
+                action.accept(node.values[i - 1]);
+            }
+            next[depth] = i + 1;
+            Node<K> child = node.children[i];
+            if (!child.isExternal()) {
+                depth++;
+                if (depth == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, 2 * depth);
+                    next = Arrays.copyOf(next, 2 * depth);
+                }
+                nodes[depth] = child;
+                next[depth] = 0;
+            }
+        }
+    }
+
+    /**
+     * Verify the invariants for the 2-4 tree and the buffers, without flushing them.
+     * @throws IllegalStateException If an invariant is violated.
+     */
+    public void verifyInvariants() {
+        root.verifyInvariants(null, null, bufferSize);
+        int[] counts = new int[2];
+        countValues(root, counts);
+        if (counts[0] != size || counts[1] != buffered) {
+            throw new IllegalStateException("Size " + size + " and " + buffered + " buffered, but "
+                    + counts[0] + " values and " + counts[1] + " buffered values");
+        }
+    }
+
+    /**
+     * Count the values in the nodes and in the buffers of a subtree.
+     * @param counts Receives the number of values at index 0, and of buffered values at index 1.
+     */
+    private static <K extends Comparable<K>> void countValues(Node<K> node, int[] counts) {
+        if (node.isExternal()) {
+            return;
+        }
+        counts[0] += node.count;
+        counts[1] += node.bufferCount;
+        for (int i = 0; i <= node.count; i++) {
+            countValues(node.children[i], counts);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+
+    public static void main(String[] args) {
+        BufferedTwoFourTree<Integer> tree = new BufferedTwoFourTree<>(4);
+        try {
+            for (int value : new int[] {5, 3, 9, 1, 7, 2, 8, 4, 6, 10, 11, 12, 13, 14, 15, 16}) {
+                tree.add(value);
+                tree.verifyInvariants();
+            }
+            System.out.println(tree);
+            System.out.println("buffered: " + tree.buffered() + ", contains 6: " + tree.contains(6)
+                    + ", contains 0: " + tree.contains(0));
+            System.out.println("size: " + tree.size() + ", buffered: " + tree.buffered());
+            tree.verifyInvariants();
+            System.out.println(tree);
+
+            Random random = new Random(42);
+            BufferedTwoFourTree<Integer> large = new BufferedTwoFourTree<>();
+            for (int i = 0; i < 100_000; i++) {
+                large.add(random.nextInt(50_000));
+            }
+            large.verifyInvariants();
+            System.out.println("buffered: " + large.buffered() + ", size: " + large.size());
+            large.verifyInvariants();
+        } catch (Exception ex) {
+            ex.printStackTrace(System.err);
+        }
+    }
+}
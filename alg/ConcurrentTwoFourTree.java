@@ -0,0 +1,447 @@
+package alg;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * A 2-4 tree that can be shared between threads.
+ *
+ * Readers never block: they read a node optimistically, and afterwards validate that the version
+ * stamp of its lock did not change. If it did, a writer modified the node in between and the
+ * reader starts again from the root. Before moving to a child, the stamp of the child is taken and
+ * the parent is validated, so a reader always holds a valid stamp for the node it is in.
+ *
+ * Writers descend the same way, and only lock the nodes they modify: the leaf they insert into, or
+ * a full node and its parent when splitting. Full nodes are split on the way down (top-down), so a
+ * split never has to go back up the tree and the parent always has room for the middle value.
+ * Locks are only taken by converting an optimistic stamp, which fails instead of blocking if the
+ * node changed, so writers cannot deadlock.
+ */
+public class ConcurrentTwoFourTree<K extends Comparable<K>> {
+
+    private static class Node<K extends Comparable<K>> {
+        /**
+         * Maximum number of values in a node. Full nodes are split before a value is added below
+         * them, so a node never overflows.
+         */
+        private static final int MAX_VALUES = 3;
+
+        /**
+         * Lock for the node. Writers hold the write lock while modifying the node, readers use
+         * optimistic stamps.
+         */
+        private final StampedLock lock = new StampedLock();
+
+        /**
+         * Values in the node, in ascending order. Only the first count entries are used.
+         */
+        private final K[] values;
+
+        /**
+         * Children of the node, or null if all children are external nodes.
+         */
+        private final Node<K>[] children;
+
+        /**
+         * Number of values in the node.
+         */
+        private int count = 0;
+
+        /**
+         * Create a new node without any values.
+         * @param isLeaf Whether all children of the node are external nodes.
+         */
+        @SuppressWarnings("unchecked")
+        Node(boolean isLeaf) {
+            values = (K[]) new Comparable[MAX_VALUES];
+            children = isLeaf ? null : (Node<K>[]) new Node[MAX_VALUES + 1];
+        }
+
+        boolean isLeaf() {
+            return children == null;
+        }
+
+        /**
+         * Insert a value and the child node to the right of it. Must be called with the write lock held.
+         * @param i Index of the value.
+         * @param value The value to insert.
+         * @param right The child for values larger than the value, or null for a leaf.
+         */
+        void insert(int i, K value, Node<K> right) {
+            System.arraycopy(values, i, values, i + 1, count - i);
+            values[i] = value;
+            if (children != null) {
+                System.arraycopy(children, i + 1, children, i + 2, count - i);
+                children[i + 1] = right;
+            }
+            count++;
+        }
+
+        /**
+         * Split a full node. The smallest value stays in this node, the largest value is moved to a
+         * new node, and the middle value should be moved to the parent. Must be called with the
+         * write lock held.
+         * @return The new node holding the largest value.
+         */
+        Node<K> split() {
+            Node<K> right = new Node<>(isLeaf());
+            right.values[0] = values[2];
+            right.count = 1;
+            if (children != null) {
+                right.children[0] = children[2];
+                right.children[1] = children[3];
+                children[2] = null;
+                children[3] = null;
+            }
+            values[1] = null;
+            values[2] = null;
+            count = 1;
+            return right;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append('[');
+            for (int i = 0; i <= count; i++) {
+                sb.append(children != null ? children[i] : "[]");
+                if (i < count) {
+                    sb.append(' ');
+                    sb.append(values[i]);
+                    sb.append(' ');
+                }
+            }
+            sb.append(']');
+            return sb.toString();
+        }
+
+        /**
+         * Verify the invariants for this node in the 2-4 tree, and return the height of the node.
+         * The tree must not be modified while it is verified.
+         * @param min The smallest legal value in this node.
+         * @param max The largest legal value in this node.
+         * @return Height, or -1 if the node violates any invariants.
+         */
+        private int verifyInvariants(K min, K max) {
+            if (this.count < 1 || this.count > MAX_VALUES) {
+                System.out.println("2-4 invariant violated ("+(this.count + 1)+")");
+                return -1;
+            }
+            K last = null;
+            int lastDepth = -1;
+            for (int i = 0; i <= this.count; i++) {
+                K value = i < this.count ? this.values[i] : null;
+                if (value == null && i < this.count) {
+                    System.out.println("Non-last value is null");
+                    return -1;
+                }
+                if (value != null && min != null && min.compareTo(value) > 0) {
+                    System.out.println("Value " + value + " too small");
+                    return -1;
+                }
+                if (value != null && max != null && max.compareTo(value) < 0) {
+                    System.out.println("Value " + value + " too large");
+                    return -1;
+                }
+                if (value != null && last != null && value.compareTo(last) <= 0) {
+                    System.out.println("Incorrect order between "+last+" and "+value);
+                    return -1;
+                }
+                int depth = 0;
+                if (this.children != null) {
+                    if (this.children[i] == null) {
+                        System.out.println("Internal node with null child");
+                        return -1;
+                    }
+                    depth = this.children[i].verifyInvariants(last == null ? min : last, value == null ? max : value);
+                    if (depth == -1) {
+                        System.out.println("Invariant violated in child node");
+                        return -1;
+                    }
+                }
+                if (lastDepth != -1 && depth != lastDepth) {
+                    System.out.println("Depth not equal ("+depth+" and "+lastDepth+")");
+                    return -1;
+                }
+                last = value;
+                lastDepth = depth;
+            }
+            return lastDepth + 1;
+        }
+    }
+
+    /**
+     * Returned by scan if the node was read while it was being modified.
+     */
+    private static final int RETRY = Integer.MIN_VALUE;
+
+    /**
+     * The root node, or null if the tree is empty.
+     */
+    private Node<K> root = null;
+
+    /**
+     * Lock for the root pointer. It acts as the parent of the root when the root is split.
+     */
+    private final StampedLock rootLock = new StampedLock();
+
+    /**
+     * Number of values in the tree.
+     */
+    private final LongAdder size = new LongAdder();
+
+    /**
+     * Find a value in a node that is read optimistically. The result is only meaningful if the
+     * stamp of the node is validated afterwards.
+     *
+     * A value read through a race may not be fully constructed yet, as seen by this thread, so its
+     * compareTo may throw. That is only an error if the node did not change, and otherwise the
+     * reader starts again.
+     * @param node The node.
+     * @param stamp Optimistic stamp of the node.
+     * @param value The value to look for.
+     * @return Index of the value, (-(index of the child to follow) - 1) if it is not in the node,
+     *         or RETRY if the node is clearly inconsistent.
+     */
+    private static <K extends Comparable<K>> int scan(Node<K> node, long stamp, K value) {
+        int count = node.count;
+        if (count < 1 || count > Node.MAX_VALUES) {
+            return RETRY;
+        }
+        for (int i = 0; i < count; i++) {
+            K v = node.values[i];
+            if (v == null) {
+                return RETRY;
+            }
+            int cmp;
+            try {
+                cmp = v.compareTo(value);
+            } catch (RuntimeException ex) {
+                if (!node.lock.validate(stamp)) {
+                    return RETRY;
+                }
+                throw ex;
+            }
+            if (cmp == 0) {
+                return i;
+            }
+            if (cmp > 0) {
+                return -i - 1;
+            }
+        }
+        return -count - 1;
+    }
+
+    /**
+     * Check whether a value is stored in the tree. This never blocks.
+     * @param value The value to look for.
+     * @return Whether the value is present.
+     */
+    public boolean contains(K value) {
+        retry:
+        while (true) {
+            long rootStamp = rootLock.tryOptimisticRead();
+            Node<K> node = root;
+            if (node == null) {
+                if (rootLock.validate(rootStamp)) {
+                    return false;
+                }
+                continue;
+            }
+            long stamp = node.lock.tryOptimisticRead();
+            if (!rootLock.validate(rootStamp)) {
+                continue;
+            }
+            while (true) {
+                int index = scan(node, stamp, value);
+                Node<K> child = null;
+                long childStamp = 0;
+                if (index != RETRY && index < 0 && !node.isLeaf()) {
+                    child = node.children[-index - 1];
+                    if (child != null) {
+                        childStamp = child.lock.tryOptimisticRead();
+                    }
+                }
+                if (index == RETRY || !node.lock.validate(stamp)) {
+                    Thread.onSpinWait();
+                    continue retry;
+                }
+                if (index >= 0) {
+                    return true;
+                }
+                if (node.isLeaf()) {
+                    return false;
+                }
+                if (child == null) {
+                    continue retry;
+                }
+                node = child;
+                stamp = childStamp;
+            }
+        }
+    }
+
+    /**
+     * Add a value to the tree. If an equal value is already present, the tree is not changed.
+     * @param value The value to add to the tree.
+     * @return Whether the value was added.
+     */
+    public boolean add(K value) {
+        retry:
+        while (true) {
+            long rootStamp = rootLock.tryOptimisticRead();
+            Node<K> node = root;
+            if (node == null) {
+                long writeStamp = rootLock.tryConvertToWriteLock(rootStamp);
+                if (writeStamp == 0) {
+                    continue;
+                }
+                Node<K> leaf = new Node<>(true);
+                leaf.values[0] = value;
+                leaf.count = 1;
+                root = leaf;
+                rootLock.unlockWrite(writeStamp);
+                size.increment();
+                return true;
+            }
+            long stamp = node.lock.tryOptimisticRead();
+            if (!rootLock.validate(rootStamp)) {
+                continue;
+            }
+            Node<K> parent = null;
+            long parentStamp = rootStamp;
+            while (true) {
+                if (node.count == Node.MAX_VALUES) {
+                    // Split the full node, then start again: the value may now belong in the new node.
+                    split(parent, parentStamp, node, stamp);
+                    continue retry;
+                }
+                int index = scan(node, stamp, value);
+                if (index == RETRY) {
+                    Thread.onSpinWait();
+                    continue retry;
+                }
+                if (index >= 0) {
+                    if (node.lock.validate(stamp)) {
+                        return false;
+                    }
+                    continue retry;
+                }
+                if (node.isLeaf()) {
+                    long writeStamp = node.lock.tryConvertToWriteLock(stamp);
+                    if (writeStamp == 0) {
+                        Thread.onSpinWait();
+                        continue retry;
+                    }
+                    // The node did not change since it was scanned, so the index is still correct.
+                    node.insert(-index - 1, value, null);
+                    node.lock.unlockWrite(writeStamp);
+                    size.increment();
+                    return true;
+                }
+                Node<K> child = node.children[-index - 1];
+                long childStamp = child == null ? 0 : child.lock.tryOptimisticRead();
+                if (child == null || !node.lock.validate(stamp)) {
+                    continue retry;
+                }
+                parent = node;
+                parentStamp = stamp;
+                node = child;
+                stamp = childStamp;
+            }
+        }
+    }
+
+    /**
+     * Split a full node, if neither the node nor its parent changed since their stamps were taken.
+     * @param parent The parent node, or null if the node is the root.
+     * @param parentStamp Optimistic stamp of the parent, or of the root pointer if the node is the root.
+     * @param node The full node.
+     * @param stamp Optimistic stamp of the node.
+     */
+    private void split(Node<K> parent, long parentStamp, Node<K> node, long stamp) {
+        StampedLock parentLock = parent == null ? rootLock : parent.lock;
+        long parentWriteStamp = parentLock.tryConvertToWriteLock(parentStamp);
+        if (parentWriteStamp == 0) {
+            return;
+        }
+        long writeStamp = node.lock.tryConvertToWriteLock(stamp);
+        if (writeStamp == 0) {
+            parentLock.unlockWrite(parentWriteStamp);
+            return;
+        }
+        K middle = node.values[1];
+        Node<K> right = node.split();
+        if (parent == null) {
+            Node<K> newRoot = new Node<>(false);
+            newRoot.values[0] = middle;
+            newRoot.children[0] = node;
+            newRoot.children[1] = right;
+            newRoot.count = 1;
+            root = newRoot;
+        } else {
+            int i = 0;
+            while (parent.children[i] != node) {
+                i++;
+            }
+            parent.insert(i, middle, right);
+        }
+        node.lock.unlockWrite(writeStamp);
+        parentLock.unlockWrite(parentWriteStamp);
+    }
+
+    /**
+     * Get the number of values in the tree. If the tree is modified concurrently, the result may
+     * not reflect all modifications.
+     * @return The number of values.
+     */
+    public int size() {
+        return size.intValue();
+    }
+
+    /**
+     * Verify the invariants for the 2-4 tree. The tree must not be modified while it is verified.
+     */
+    public void verifyInvariants() {
+        long stamp = rootLock.readLock();
+        try {
+            if (root != null && root.verifyInvariants(null, null) == -1) {
+                throw new IllegalStateException();
+            }
+        } finally {
+            rootLock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return root == null ? "[]" : root.toString();
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        ConcurrentTwoFourTree<Integer> tree = new ConcurrentTwoFourTree<>();
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int n = offset; n < 100_000; n += threads.length) {
+                    tree.add(n);
+                    tree.contains(n / 2);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        try {
+            tree.verifyInvariants();
+            System.out.println(tree.size());
+        } catch (Exception ex) {
+            ex.printStackTrace(System.err);
+        }
+        // expected: 100000
+    }
+}
@@ -0,0 +1,105 @@
+package alg;
+
+import java.util.Arrays;
+
+/**
+ * TreeMetrics that adds up the measurements in plain counters. Like the tree itself, it must not
+ * be used from several threads at once.
+ */
+public class CountingTreeMetrics implements TreeMetrics {
+    private long adds = 0;
+    private long removes = 0;
+    private long searches = 0;
+    private long comparisons = 0;
+    private long splits = 0;
+    private long duplicates = 0;
+
+    /**
+     * Number of adds for each depth of the split cascade. The last entry also counts deeper cascades.
+     */
+    private final long[] cascades = new long[16];
+
+    @Override
+    public void added(int comparisons, int splits, boolean duplicate) {
+        adds++;
+        this.comparisons += comparisons;
+        this.splits += splits;
+        if (duplicate) {
+            duplicates++;
+        }
+        cascades[Math.min(splits, cascades.length - 1)]++;
+    }
+
+    @Override
+    public void removed(int comparisons, boolean found) {
+        removes++;
+        this.comparisons += comparisons;
+    }
+
+    @Override
+    public void searched(int comparisons, boolean found) {
+        searches++;
+        this.comparisons += comparisons;
+    }
+
+    /**
+     * Get the number of operations that were measured.
+     * @return The number of adds, removes and lookups.
+     */
+    public long operations() {
+        return adds + removes + searches;
+    }
+
+    /**
+     * Get the average number of comparisons per operation.
+     * @return The average, or 0 if nothing was measured.
+     */
+    public double comparisonsPerOperation() {
+        long operations = operations();
+        return operations == 0 ? 0 : (double) comparisons / operations;
+    }
+
+    /**
+     * Get the number of nodes that were split by adds.
+     * @return The number of splits.
+     */
+    public long splits() {
+        return splits;
+    }
+
+    /**
+     * Get the number of adds of a value that was already present.
+     * @return The number of duplicate hits.
+     */
+    public long duplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Get the number of adds for each depth of the split cascade: entry i counts the adds that split
+     * i nodes, and the last entry also counts the adds that split more nodes.
+     * @return A copy of the histogram.
+     */
+    public long[] cascadeHistogram() {
+        return cascades.clone();
+    }
+
+    /**
+     * Reset all counters to zero.
+     */
+    public void reset() {
+        adds = 0;
+        removes = 0;
+        searches = 0;
+        comparisons = 0;
+        splits = 0;
+        duplicates = 0;
+        Arrays.fill(cascades, 0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d adds, %d removes, %d lookups, %.2f comparisons/op, %d splits, %d duplicates",
+                adds, removes, searches, comparisonsPerOperation(), splits, duplicates);
+    }
+}
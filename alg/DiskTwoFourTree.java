@@ -0,0 +1,878 @@
+package alg;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.zip.CRC32C;
+
+/**
+ * A B-tree of long values that lives in a file instead of on the heap. Every node is a fixed-size
+ * page of a memory-mapped file, and only a bounded number of nodes are kept decoded on the heap, in
+ * a cache with CLOCK eviction. The nodes follow the model of TwoFourTree: a node of a tree of order
+ * m holds up to m - 1 values and m children, and the lowest internal nodes have only external
+ * children, stored as page 0.
+ *
+ * Changes are crash safe through copy-on-write: a committed page is never modified. The first change
+ * to a node after a commit copies it to a free page, and its parent to point to the copy, up to the
+ * root. commit writes the changed pages, forces them to disk, and then writes the new root to one of
+ * two superblocks, alternately. After a crash, open takes the valid superblock of the latest commit,
+ * so the tree is in the state of that commit. The pages that a commit replaced are reused after the
+ * next commit.
+ */
+public class DiskTwoFourTree implements AutoCloseable {
+
+    private static final int PAGE_SIZE = 4096;
+
+    /**
+     * The file is mapped in segments of this size, since a single mapping is limited to 2 GiB.
+     */
+    private static final int SEGMENT_SIZE = 1 << 26;
+
+    private static final int PAGES_PER_SEGMENT = SEGMENT_SIZE / PAGE_SIZE;
+
+    /**
+     * Marks a superblock: the bytes "24DTREE1".
+     */
+    private static final long MAGIC = 0x3234445452454531L;
+
+    /**
+     * Version of the file format.
+     */
+    private static final int VERSION = 1;
+
+    /**
+     * Largest order for which a node fits in a page: a count, order - 1 values and order children.
+     */
+    public static final int MAX_ORDER = PAGE_SIZE / 16;
+
+    /**
+     * Number of free page numbers in a page of the free list, after the next page and the count.
+     */
+    private static final int FREE_PAGES_PER_PAGE = (PAGE_SIZE - 16) / 8;
+
+    /**
+     * Page number of the external node. Pages 0 and 1 are the superblocks, so no node has this number.
+     */
+    private static final long EXTERNAL = 0;
+
+    private static final int SUPERBLOCK_LENGTH = 72;
+
+    private static final class Node {
+        /**
+         * Page number of the node.
+         */
+        private final long page;
+
+        /**
+         * Values in the node, in ascending order. Only the first count entries are used. The array
+         * has room for one value more than the maximum, so that a node can temporarily overflow
+         * before it is split.
+         */
+        private final long[] values;
+
+        /**
+         * Page numbers of the children of the node. The child at index i should be followed for
+         * values smaller than values[i], the child at index count for values larger than the largest
+         * value in the node.
+         */
+        private final long[] children;
+
+        /**
+         * Number of values in the node.
+         */
+        private int count = 0;
+
+        /**
+         * Whether the node was changed since it was last written to its page.
+         */
+        private boolean dirty = false;
+
+        /**
+         * Whether the node was used since the clock hand last passed it.
+         */
+        private boolean referenced = true;
+
+        /**
+         * Number of operations that hold on to the node, which must not be evicted while they do.
+         */
+        private int pins = 0;
+
+        /**
+         * Index of the node in the clock.
+         */
+        private int slot;
+
+        Node(long page, int order) {
+            this.page = page;
+            values = new long[order];
+            children = new long[order + 1];
+        }
+
+        boolean isLowest() {
+            return children[0] == EXTERNAL;
+        }
+
+        /**
+         * Insert a value and the child node to the right of it (for values larger than the value) in this node.
+         * @param i Index of the value, which must be the index of the child that is split by it.
+         * @param value Value to insert.
+         * @param right Page number of the child node to insert.
+         */
+        void insert(int i, long value, long right) {
+            System.arraycopy(values, i, values, i + 1, count - i);
+            System.arraycopy(children, i + 1, children, i + 2, count - i);
+            values[i] = value;
+            children[i + 1] = right;
+            count++;
+            dirty = true;
+        }
+
+        /**
+         * Move the values and children to the right of the given index to another node. The value
+         * at the index itself is removed from this node as well, and should be moved to the parent.
+         * @param middle Index of the value to split at.
+         * @param right An empty node that receives the larger values.
+         */
+        void split(int middle, Node right) {
+            int rightCount = count - middle - 1;
+            System.arraycopy(values, middle + 1, right.values, 0, rightCount);
+            System.arraycopy(children, middle + 1, right.children, 0, rightCount + 1);
+            right.count = rightCount;
+            Arrays.fill(children, middle + 1, count + 1, EXTERNAL);
+            count = middle;
+            dirty = true;
+            right.dirty = true;
+        }
+
+        /**
+         * Find the given value in this node.
+         * @param value Value to look for.
+         * @return Index of the value, or (-(index of the child to follow) - 1) if it is not in this node.
+         */
+        int indexOf(long value) {
+            int lo = 0;
+            int hi = count - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (values[mid] < value) {
+                    lo = mid + 1;
+                } else if (values[mid] > value) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -lo - 1;
+        }
+    }
+
+    /**
+     * A growable stack of page numbers.
+     */
+    private static final class PageStack {
+        private long[] pages = new long[16];
+        private int count = 0;
+
+        void push(long page) {
+            if (count == pages.length) {
+                pages = Arrays.copyOf(pages, 2 * count);
+            }
+            pages[count++] = page;
+        }
+
+        long pop() {
+            return pages[--count];
+        }
+
+        void pushAll(PageStack other) {
+            for (int i = 0; i < other.count; i++) {
+                push(other.pages[i]);
+            }
+        }
+
+        boolean isEmpty() {
+            return count == 0;
+        }
+
+        void clear() {
+            count = 0;
+        }
+    }
+
+    private final FileChannel channel;
+    private MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    /**
+     * Segments with pages that were written since they were last forced to disk.
+     */
+    private final BitSet dirtySegments = new BitSet();
+
+    /**
+     * Maximum number of children of a node.
+     */
+    private final int order;
+    private final int maxValues;
+    private final int minValues;
+
+    private long root = EXTERNAL;
+    private int height = 0;
+    private long size = 0;
+
+    /**
+     * Number of pages in use, including the free pages: every page number is below it.
+     */
+    private long pageCount = 2;
+
+    /**
+     * Number of the latest commit, whose superblock is in page (generation % 2).
+     */
+    private long generation = 0;
+
+    /**
+     * Pages that are not used by the latest commit, and can be written.
+     */
+    private PageStack free = new PageStack();
+
+    /**
+     * Pages that the latest commit uses, but that were replaced by copies since then. They become
+     * free with the next commit.
+     */
+    private PageStack replaced = new PageStack();
+
+    /**
+     * Pages holding the list of free pages of the latest commit. They become free with the next commit.
+     */
+    private PageStack freeListPages = new PageStack();
+
+    /**
+     * Pages that were allocated since the latest commit, which can be changed in place.
+     */
+    private final BitSet fresh = new BitSet();
+
+    /**
+     * Whether the tree was changed since the latest commit.
+     */
+    private boolean modified = false;
+
+    /**
+     * The decoded nodes, by page number.
+     */
+    private final Map<Long, Node> cache = new HashMap<>();
+
+    /**
+     * The cached nodes, in the order that the clock hand passes them. Null entries are free slots.
+     */
+    private Node[] clock;
+    private int hand = 0;
+
+    /**
+     * Free slots in the clock.
+     */
+    private int[] freeSlots;
+    private int freeSlotCount;
+
+    /**
+     * Nodes on the path of the latest add, from the root down. Nodes do not point to their parents,
+     * so the path is used to walk back up when splitting.
+     */
+    private Node[] pathNodes = new Node[8];
+
+    /**
+     * For each node on the path, the index of the child that the path continues with.
+     */
+    private int[] pathIndices = new int[8];
+
+    private DiskTwoFourTree(FileChannel channel, int order, int cachedNodes) throws IOException {
+        this.channel = channel;
+        this.order = order;
+        maxValues = order - 1;
+        minValues = (order + 1) / 2 - 1;
+        clock = new Node[cachedNodes];
+        freeSlots = new int[cachedNodes];
+        for (int i = 0; i < cachedNodes; i++) {
+            freeSlots[i] = cachedNodes - 1 - i;
+        }
+        freeSlotCount = cachedNodes;
+
+        if (channel.size() == 0) {
+            modified = true;
+            commit();
+            return;
+        }
+        ByteBuffer latest = null;
+        for (int slot = 0; slot < 2; slot++) {
+            ByteBuffer superblock = page(slot);
+            if (isValidSuperblock(superblock) && (latest == null || superblock.getLong(16) > latest.getLong(16))) {
+                latest = superblock;
+            }
+        }
+        if (latest == null) {
+            throw new IOException("No valid superblock");
+        }
+        int fileOrder = latest.getInt(12);
+        if (latest.getInt(8) != VERSION) {
+            throw new IOException("Unsupported version: " + latest.getInt(8));
+        }
+        if (fileOrder != order) {
+            throw new IOException("The tree in the file has order " + fileOrder + ", not " + order);
+        }
+        generation = latest.getLong(16);
+        root = latest.getLong(24);
+        height = latest.getInt(32);
+        size = latest.getLong(40);
+        pageCount = latest.getLong(48);
+        for (long page = latest.getLong(56); page != EXTERNAL; ) {
+            ByteBuffer buffer = page(page);
+            freeListPages.push(page);
+            int count = buffer.getInt(8);
+            for (int i = 0; i < count; i++) {
+                free.push(buffer.getLong(16 + 8 * i));
+            }
+            page = buffer.getLong(0);
+        }
+    }
+
+    /**
+     * Open a tree in a file, or create it if the file does not exist or is empty.
+     * @param file The file.
+     * @param order The maximum number of children of a node, at most MAX_ORDER. An existing tree
+     *              must have this order.
+     * @param cachedNodes Number of nodes that are kept decoded on the heap, at least 16. Each takes
+     *                    about 16 * order bytes.
+     * @return The tree.
+     * @throws IOException If the file cannot be read, or holds no valid tree of this order.
+     * @throws IllegalArgumentException If the order or the number of cached nodes is out of range.
+     */
+    public static DiskTwoFourTree open(Path file, int order, int cachedNodes) throws IOException {
+        if (order < 3 || order > MAX_ORDER) {
+            throw new IllegalArgumentException("Order must be between 3 and " + MAX_ORDER + ": " + order);
+        }
+        if (cachedNodes < 16) {
+            throw new IllegalArgumentException("At least 16 nodes must be cached: " + cachedNodes);
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            return new DiskTwoFourTree(channel, order, cachedNodes);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Open a tree of order MAX_ORDER in a file, with 4096 cached nodes.
+     * @param file The file.
+     * @return The tree.
+     * @throws IOException If the file cannot be read, or holds no valid tree of this order.
+     */
+    public static DiskTwoFourTree open(Path file) throws IOException {
+        return open(file, MAX_ORDER, 4096);
+    }
+
+    /**
+     * Get a page of the file, mapping its segment if needed.
+     * @param page The page number.
+     * @return A buffer over the page.
+     */
+    private ByteBuffer page(long page) {
+        int segment = (int) (page / PAGES_PER_SEGMENT);
+        if (segment >= segments.length) {
+            segments = Arrays.copyOf(segments, Math.max(segment + 1, 2 * segments.length));
+        }
+        if (segments[segment] == null) {
+            try {
+                segments[segment] = channel.map(FileChannel.MapMode.READ_WRITE, (long) segment * SEGMENT_SIZE,
+                        SEGMENT_SIZE);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+        }
+        return segments[segment].slice((int) (page % PAGES_PER_SEGMENT) * PAGE_SIZE, PAGE_SIZE);
+    }
+
+    /**
+     * Get a node, from the cache or else from its page.
+     * @param page The page number of the node.
+     * @return The node.
+     */
+    private Node node(long page) {
+        Node node = cache.get(page);
+        if (node == null) {
+            node = new Node(page, order);
+            ByteBuffer buffer = page(page);
+            node.count = buffer.getInt(0);
+            buffer.position(8);
+            buffer.asLongBuffer().get(node.values, 0, node.count);
+            buffer.position(8 + 8 * maxValues);
+            buffer.asLongBuffer().get(node.children, 0, node.count + 1);
+            admit(node);
+        }
+        node.referenced = true;
+        return node;
+    }
+
+    /**
+     * Write a node to its page.
+     * @param node The node.
+     */
+    private void write(Node node) {
+        ByteBuffer buffer = page(node.page);
+        buffer.putInt(0, node.count);
+        buffer.position(8);
+        buffer.asLongBuffer().put(node.values, 0, node.count);
+        buffer.position(8 + 8 * maxValues);
+        buffer.asLongBuffer().put(node.children, 0, node.count + 1);
+        dirtySegments.set((int) (node.page / PAGES_PER_SEGMENT));
+        node.dirty = false;
+    }
+
+    /**
+     * Add a node to the cache. If the cache is full, the clock hand evicts the first node that was
+     * not used since the hand last passed it. If every node is pinned, the cache grows instead.
+     * @param node The node.
+     */
+    private void admit(Node node) {
+        if (freeSlotCount == 0) {
+            for (int steps = 0; steps < 2 * clock.length && freeSlotCount == 0; steps++) {
+                Node candidate = clock[hand];
+                if (candidate.pins == 0 && !candidate.referenced) {
+                    if (candidate.dirty) {
+                        write(candidate);
+                    }
+                    evict(candidate);
+                } else {
+                    candidate.referenced = false;
+                    hand = (hand + 1) % clock.length;
+                }
+            }
+            if (freeSlotCount == 0) {
+                int length = clock.length;
+                clock = Arrays.copyOf(clock, 2 * length);
+                freeSlots = Arrays.copyOf(freeSlots, 2 * length);
+                for (int i = 2 * length - 1; i >= length; i--) {
+                    freeSlots[freeSlotCount++] = i;
+                }
+            }
+        }
+        node.slot = freeSlots[--freeSlotCount];
+        clock[node.slot] = node;
+        cache.put(node.page, node);
+    }
+
+    /**
+     * Remove a node from the cache, without writing it.
+     * @param node The node.
+     */
+    private void evict(Node node) {
+        cache.remove(node.page);
+        clock[node.slot] = null;
+        freeSlots[freeSlotCount++] = node.slot;
+    }
+
+    /**
+     * Allocate a page for a new node, preferably a free one.
+     * @return The new, empty node.
+     */
+    private Node allocate() {
+        long page = free.isEmpty() ? pageCount++ : free.pop();
+        if (page > Integer.MAX_VALUE) {
+            throw new IllegalStateException("The file is full");
+        }
+        fresh.set((int) page);
+        Node node = new Node(page, order);
+        node.dirty = true;
+        admit(node);
+        return node;
+    }
+
+    /**
+     * Store a node on the path, growing the path arrays if needed.
+     * @param level The level of the node.
+     * @param node The node.
+     */
+    private void setPath(int level, Node node) {
+        if (level >= pathNodes.length) {
+            pathNodes = Arrays.copyOf(pathNodes, 2 * level);
+            pathIndices = Arrays.copyOf(pathIndices, 2 * level);
+        }
+        pathNodes[level] = node;
+    }
+
+    /**
+     * Add a value to the tree. The change is only durable after the next commit.
+     * @param value The value to add to the tree.
+     * @return Whether the value was added, false if it was already present.
+     * @throws UncheckedIOException If the file cannot be extended.
+     */
+    public boolean add(long value) {
+        if (root == EXTERNAL) {
+            Node node = allocate();
+            node.values[0] = value;
+            node.count = 1;
+            root = node.page;
+            height = 1;
+            size = 1;
+            modified = true;
+            return true;
+        }
+
+        // Find the lowest internal node where the value should be inserted, and record the path to it.
+        int depth = 0;
+        Node currentNode = node(root);
+        currentNode.pins++;
+        setPath(0, currentNode);
+        try {
+            while (true) {
+                int index = currentNode.indexOf(value);
+                if (index >= 0) {
+                    return false;
+                }
+                pathIndices[depth] = -index - 1;
+                if (currentNode.isLowest()) {
+                    break;
+                }
+                currentNode = node(currentNode.children[-index - 1]);
+                currentNode.pins++;
+                setPath(++depth, currentNode);
+            }
+
+            // Copy the committed nodes on the path, from the root down, so that each parent can be
+            // pointed to the copy of its child.
+            for (int level = 0; level <= depth; level++) {
+                Node node = pathNodes[level];
+                if (fresh.get((int) node.page)) {
+                    continue;
+                }
+                Node copy = allocate();
+                System.arraycopy(node.values, 0, copy.values, 0, node.count);
+                System.arraycopy(node.children, 0, copy.children, 0, node.count + 1);
+                copy.count = node.count;
+                copy.pins++;
+                node.pins--;
+                evict(node);
+                replaced.push(node.page);
+                pathNodes[level] = copy;
+                if (level == 0) {
+                    root = copy.page;
+                } else {
+                    Node parent = pathNodes[level - 1];
+                    parent.children[pathIndices[level - 1]] = copy.page;
+                    parent.dirty = true;
+                }
+            }
+
+            int level = depth;
+            currentNode = pathNodes[level];
+            currentNode.insert(pathIndices[level], value, EXTERNAL);
+            size++;
+            modified = true;
+            while (currentNode.count > maxValues) {
+                int middle = currentNode.count / 2;
+                long middleValue = currentNode.values[middle];
+                Node right = allocate();
+                currentNode.split(middle, right);
+                if (level == 0) {
+                    Node newRoot = allocate();
+                    newRoot.values[0] = middleValue;
+                    newRoot.children[0] = currentNode.page;
+                    newRoot.children[1] = right.page;
+                    newRoot.count = 1;
+                    root = newRoot.page;
+                    height++;
+                    break;
+                }
+                level--;
+                currentNode = pathNodes[level];
+                currentNode.insert(pathIndices[level], middleValue, right.page);
+            }
+            return true;
+        } finally {
+            for (int level = 0; level <= depth; level++) {
+                pathNodes[level].pins--;
+            }
+        }
+    }
+
+    /**
+     * Check whether a value is stored in the tree.
+     * @param value The value to look for.
+     * @return Whether the value is present.
+     */
+    public boolean contains(long value) {
+        long page = root;
+        while (page != EXTERNAL) {
+            Node node = node(page);
+            int index = node.indexOf(value);
+            if (index >= 0) {
+                return true;
+            }
+            page = node.children[-index - 1];
+        }
+        return false;
+    }
+
+    /**
+     * Get the number of values in the tree.
+     * @return The number of values.
+     */
+    public long size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Get the height of the tree.
+     * @return The number of internal nodes on a path from the root to an external node.
+     */
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Make all changes since the latest commit durable. The changed nodes are written and forced to
+     * disk first, and then the superblock that points to the new root. Until that superblock is on
+     * disk, the file still holds the previous commit intact.
+     * @throws IOException If writing fails.
+     */
+    public void commit() throws IOException {
+        if (!modified) {
+            return;
+        }
+        for (Node node : cache.values()) {
+            if (node.dirty) {
+                write(node);
+            }
+        }
+
+        // Once this commit is durable, the pages it replaced and the old free list are free too. The
+        // new free list is stored in pages that are free now, which are then no longer listed, or
+        // else in new pages at the end. The replaced pages and the old free list are still in use
+        // until the new superblock is written.
+        PageStack newFreeListPages = new PageStack();
+        int listed = free.count + replaced.count + freeListPages.count;
+        while ((long) newFreeListPages.count * FREE_PAGES_PER_PAGE < listed) {
+            if (free.isEmpty()) {
+                newFreeListPages.push(pageCount++);
+            } else {
+                newFreeListPages.push(free.pop());
+                listed--;
+            }
+        }
+        PageStack newFree = new PageStack();
+        newFree.pushAll(free);
+        newFree.pushAll(replaced);
+        newFree.pushAll(freeListPages);
+        long head = EXTERNAL;
+        for (int i = 0; i < newFreeListPages.count; i++) {
+            long page = newFreeListPages.pages[i];
+            int start = i * FREE_PAGES_PER_PAGE;
+            ByteBuffer buffer = page(page);
+            int count = Math.min(FREE_PAGES_PER_PAGE, newFree.count - start);
+            buffer.putLong(0, head);
+            buffer.putInt(8, count);
+            buffer.position(16);
+            buffer.asLongBuffer().put(newFree.pages, start, count);
+            dirtySegments.set((int) (page / PAGES_PER_SEGMENT));
+            head = page;
+        }
+        force();
+
+        long newGeneration = generation + 1;
+        ByteBuffer superblock = page(newGeneration % 2);
+        superblock.putLong(0, MAGIC);
+        superblock.putInt(8, VERSION);
+        superblock.putInt(12, order);
+        superblock.putLong(16, newGeneration);
+        superblock.putLong(24, root);
+        superblock.putInt(32, height);
+        superblock.putLong(40, size);
+        superblock.putLong(48, pageCount);
+        superblock.putLong(56, head);
+        superblock.putLong(64, newFree.count);
+        superblock.putInt(SUPERBLOCK_LENGTH, superblockChecksum(superblock));
+        dirtySegments.set(0);
+        force();
+
+        generation = newGeneration;
+        free = newFree;
+        replaced.clear();
+        freeListPages = newFreeListPages;
+        fresh.clear();
+        modified = false;
+    }
+
+    /**
+     * Force the segments with written pages to disk.
+     */
+    private void force() {
+        for (int segment = dirtySegments.nextSetBit(0); segment >= 0; segment = dirtySegments.nextSetBit(segment + 1)) {
+            segments[segment].force();
+        }
+        dirtySegments.clear();
+    }
+
+    private static int superblockChecksum(ByteBuffer superblock) {
+        CRC32C checksum = new CRC32C();
+        checksum.update(superblock.duplicate().position(0).limit(SUPERBLOCK_LENGTH));
+        return (int) checksum.getValue();
+    }
+
+    private static boolean isValidSuperblock(ByteBuffer superblock) {
+        return superblock.getLong(0) == MAGIC && superblock.getInt(SUPERBLOCK_LENGTH) == superblockChecksum(superblock);
+    }
+
+    /**
+     * Commit the changes and close the file. The mapped segments are released when they are
+     * garbage collected.
+     * @throws IOException If writing fails.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            commit();
+        } finally {
+            channel.close();
+            segments = new MappedByteBuffer[0];
+            cache.clear();
+        }
+    }
+
+    /**
+     * Check the invariants of the tree with an iterative in-order walk: the number of values in
+     * every node, the order of all values, the depth of the lowest internal nodes, and the size.
+     * @return The report, with the height and the number of values if the tree is valid.
+     */
+    public InvariantReport checkInvariants() {
+        if (root == EXTERNAL) {
+            return height == 0 && size == 0 ? InvariantReport.valid(0, 0)
+                    : InvariantReport.violated("Empty tree with height " + height + " and size " + size);
+        }
+        Node[] nodes = new Node[height];
+        int[] next = new int[height];
+        long values = 0;
+        long previous = 0;
+        nodes[0] = node(root);
+        int depth = 0;
+        while (depth >= 0) {
+            Node node = nodes[depth];
+            int i = next[depth]++;
+            if (i > node.count) {
+                depth--;
+                continue;
+            }
+            if (i == 0) {
+                if (node.count < (depth == 0 ? 1 : minValues) || node.count > maxValues) {
+                    return InvariantReport.violated("B-tree invariant violated (" + (node.count + 1) + " children)");
+                }
+                if (node.isLowest() != (depth == height - 1)) {
+                    return InvariantReport.violated("Lowest internal node at depth " + depth + " in a tree of height " + height);
+                }
+            } else {
+                long value = node.values[i - 1];
+                if (values > 0 && value <= previous) {
+                    return InvariantReport.violated("Incorrect order between " + previous + " and " + value);
+                }
+                previous = value;
+                values++;
+            }
+            if (!node.isLowest()) {
+                long child = node.children[i];
+                if (child < 2 || child >= pageCount) {
+                    return InvariantReport.violated("Invalid page number " + child);
+                }
+                depth++;
+                nodes[depth] = node(child);
+                next[depth] = 0;
+            }
+        }
+        if (values != size) {
+            return InvariantReport.violated("Size " + size + " but " + values + " values");
+        }
+        return InvariantReport.valid(height, values);
+    }
+
+    /**
+     * Verify the invariants of the tree.
+     * @throws IllegalStateException If an invariant is violated.
+     */
+    public void verifyInvariants() {
+        InvariantReport report = checkInvariants();
+        if (!report.isValid()) {
+            throw new IllegalStateException(report.violation());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path file = Files.createTempFile("tree", ".db");
+        Files.delete(file);
+        Path crashed = Files.createTempFile("crashed", ".db");
+        Files.delete(crashed);
+        try {
+            Random random = new Random(42);
+            try (DiskTwoFourTree tree = DiskTwoFourTree.open(file, 4, 64)) {
+                for (int i = 0; i < 100_000; i++) {
+                    tree.add(random.nextInt(1_000_000));
+                    if (i % 10_000 == 0) {
+                        tree.commit();
+                    }
+                }
+                tree.verifyInvariants();
+            }
+            try (DiskTwoFourTree tree = DiskTwoFourTree.open(file, 4, 64)) {
+                System.out.println(tree.checkInvariants() + ", " + Files.size(file) / PAGE_SIZE + " pages");
+            }
+
+            // Simulate a crash: copy the file while there are uncommitted adds, some of which were
+            // already written to free pages when their nodes were evicted from the cache. The copy
+            // must hold exactly the values of the last commit.
+            Set<Long> committed = new HashSet<>();
+            long[] uncommitted = new long[50_000];
+            long committedSize;
+            try (DiskTwoFourTree tree = DiskTwoFourTree.open(file, 4, 64)) {
+                for (int i = 0; i < 50_000; i++) {
+                    long value = random.nextInt(1_000_000);
+                    tree.add(value);
+                    committed.add(value);
+                }
+                tree.commit();
+                committedSize = tree.size();
+                for (int i = 0; i < uncommitted.length; i++) {
+                    uncommitted[i] = 1_000_000 + random.nextInt(1_000_000);
+                    tree.add(uncommitted[i]);
+                }
+                Files.copy(file, crashed);
+            }
+            try (DiskTwoFourTree tree = DiskTwoFourTree.open(crashed, 4, 64)) {
+                InvariantReport report = tree.checkInvariants();
+                boolean contentsMatch = tree.size() == committedSize;
+                for (long value : committed) {
+                    contentsMatch &= tree.contains(value);
+                }
+                for (long value : uncommitted) {
+                    contentsMatch &= !tree.contains(value);
+                }
+                System.out.println("after crash: " + report + ", "
+                        + (contentsMatch ? "contents match the last commit" : "contents do not match the last commit"));
+            }
+        } finally {
+            Files.deleteIfExists(file);
+            Files.deleteIfExists(crashed);
+        }
+    }
+}
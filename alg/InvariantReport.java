@@ -0,0 +1,78 @@
+package alg;
+
+/**
+ * The result of checking the invariants of a tree: either a description of the first violation
+ * that was found, or the height of the tree and the number of values in it.
+ */
+public final class InvariantReport {
+    /**
+     * Description of the violation, or null if the tree is valid.
+     */
+    private final String violation;
+
+    /**
+     * Height of the tree. For a Red-Black tree this is the black height.
+     */
+    private final int height;
+
+    /**
+     * Number of values in the tree.
+     */
+    private final long values;
+
+    private InvariantReport(String violation, int height, long values) {
+        this.violation = violation;
+        this.height = height;
+        this.values = values;
+    }
+
+    /**
+     * Create the report for a valid tree or subtree.
+     * @param height The height of the tree.
+     * @param values The number of values in the tree.
+     */
+    static InvariantReport valid(int height, long values) {
+        return new InvariantReport(null, height, values);
+    }
+
+    /**
+     * Create the report for a tree that violates an invariant.
+     * @param violation Description of the violation.
+     */
+    static InvariantReport violated(String violation) {
+        return new InvariantReport(violation, -1, -1);
+    }
+
+    public boolean isValid() {
+        return violation == null;
+    }
+
+    /**
+     * Get the description of the violation.
+     * @return The description, or null if the tree is valid.
+     */
+    public String violation() {
+        return violation;
+    }
+
+    /**
+     * Get the height of the tree.
+     * @return The height, or -1 if the tree is not valid.
+     */
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Get the number of values in the tree.
+     * @return The number of values, or -1 if the tree is not valid.
+     */
+    public long values() {
+        return values;
+    }
+
+    @Override
+    public String toString() {
+        return isValid() ? "valid (height " + height + ", " + values + " values)" : violation;
+    }
+}
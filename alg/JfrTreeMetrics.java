@@ -0,0 +1,168 @@
+package alg;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Period;
+
+/**
+ * TreeMetrics that reports every operation as a JDK Flight Recorder event, and the shape of the
+ * tree (height and node fill) as a periodic event. While no recording has the events enabled,
+ * each operation only costs a check of the event settings.
+ *
+ * Counting the nodes takes time proportional to the size of the tree, and the tree must not be read
+ * while it is modified. So the periodic event only sets a flag, and the shape is recorded by the
+ * thread that uses the tree, at the end of its next operation.
+ */
+public class JfrTreeMetrics implements TreeMetrics, AutoCloseable {
+
+    @Name("alg.TreeAdd")
+    @Label("Tree Add")
+    @Category("Trees")
+    static class AddEvent extends Event {
+        @Label("Comparisons")
+        @Description("Number of calls to compareTo, not counting search steps decided by normalized prefixes")
+        int comparisons;
+
+        @Label("Splits")
+        @Description("Number of nodes that were split, the depth of the split cascade for bottom-up insertion")
+        int splits;
+
+        @Label("Duplicate")
+        @Description("Whether the value was already present")
+        boolean duplicate;
+    }
+
+    @Name("alg.TreeRemove")
+    @Label("Tree Remove")
+    @Category("Trees")
+    static class RemoveEvent extends Event {
+        @Label("Comparisons")
+        @Description("Number of calls to compareTo, not counting search steps decided by normalized prefixes")
+        int comparisons;
+
+        @Label("Found")
+        boolean found;
+    }
+
+    @Name("alg.TreeSearch")
+    @Label("Tree Search")
+    @Category("Trees")
+    static class SearchEvent extends Event {
+        @Label("Comparisons")
+        @Description("Number of calls to compareTo, not counting search steps decided by normalized prefixes")
+        int comparisons;
+
+        @Label("Found")
+        boolean found;
+    }
+
+    @Name("alg.TreeShape")
+    @Label("Tree Shape")
+    @Category("Trees")
+    @Period("60 s")
+    static class ShapeEvent extends Event {
+        @Label("Height")
+        int height;
+
+        @Label("Size")
+        int size;
+
+        @Label("2-Nodes")
+        int twoNodes;
+
+        @Label("3-Nodes")
+        int threeNodes;
+
+        @Label("4-Nodes")
+        int fourNodes;
+
+        @Label("Wider Nodes")
+        @Description("Nodes with more than 4 children, in trees of a higher order")
+        int widerNodes;
+    }
+
+    private final TwoFourTree<?> tree;
+
+    /**
+     * Set by the periodic event hook when the shape of the tree should be recorded.
+     */
+    private volatile boolean shapeRequested = false;
+
+    private final Runnable hook = () -> shapeRequested = true;
+
+    /**
+     * Create the metrics for a tree, and register the periodic shape event. The metrics still have
+     * to be passed to setMetrics of the tree.
+     * @param tree The tree whose shape is recorded.
+     */
+    public JfrTreeMetrics(TwoFourTree<?> tree) {
+        this.tree = tree;
+        FlightRecorder.addPeriodicEvent(ShapeEvent.class, hook);
+    }
+
+    @Override
+    public void added(int comparisons, int splits, boolean duplicate) {
+        AddEvent event = new AddEvent();
+        if (event.shouldCommit()) {
+            event.comparisons = comparisons;
+            event.splits = splits;
+            event.duplicate = duplicate;
+            event.commit();
+        }
+        recordShapeIfRequested();
+    }
+
+    @Override
+    public void removed(int comparisons, boolean found) {
+        RemoveEvent event = new RemoveEvent();
+        if (event.shouldCommit()) {
+            event.comparisons = comparisons;
+            event.found = found;
+            event.commit();
+        }
+        recordShapeIfRequested();
+    }
+
+    @Override
+    public void searched(int comparisons, boolean found) {
+        SearchEvent event = new SearchEvent();
+        if (event.shouldCommit()) {
+            event.comparisons = comparisons;
+            event.found = found;
+            event.commit();
+        }
+        recordShapeIfRequested();
+    }
+
+    private void recordShapeIfRequested() {
+        if (!shapeRequested) {
+            return;
+        }
+        shapeRequested = false;
+        ShapeEvent event = new ShapeEvent();
+        if (event.shouldCommit()) {
+            int[] fill = tree.nodeFillHistogram();
+            event.height = tree.height();
+            event.size = tree.size();
+            event.twoNodes = fill.length > 2 ? fill[2] : 0;
+            event.threeNodes = fill.length > 3 ? fill[3] : 0;
+            event.fourNodes = fill.length > 4 ? fill[4] : 0;
+            for (int children = 5; children < fill.length; children++) {
+                event.widerNodes += fill[children];
+            }
+            event.commit();
+        }
+    }
+
+    /**
+     * Unregister the periodic shape event.
+     */
+    @Override
+    public void close() {
+        FlightRecorder.removePeriodicEvent(hook);
+    }
+}
@@ -0,0 +1,101 @@
+package alg;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Converts keys to and from bytes, for the snapshots of TwoFourTree.
+ * @param <K> Type of the keys.
+ */
+public interface KeyCodec<K> {
+    /**
+     * Get the name of the codec. It is stored in a snapshot, so that a snapshot is not read with a
+     * different codec than it was written with.
+     * @return The name.
+     */
+    String name();
+
+    /**
+     * Write a key.
+     * @param key The key.
+     * @param out The output.
+     */
+    void write(K key, DataOutput out) throws IOException;
+
+    /**
+     * Read a key.
+     * @param in The input.
+     * @return The key.
+     */
+    K read(DataInput in) throws IOException;
+
+    /**
+     * Codec for Integer keys, as 4 bytes each.
+     */
+    KeyCodec<Integer> INT = new KeyCodec<>() {
+        @Override
+        public String name() {
+            return "int";
+        }
+
+        @Override
+        public void write(Integer key, DataOutput out) throws IOException {
+            out.writeInt(key);
+        }
+
+        @Override
+        public Integer read(DataInput in) throws IOException {
+            return in.readInt();
+        }
+    };
+
+    /**
+     * Codec for Long keys, as 8 bytes each.
+     */
+    KeyCodec<Long> LONG = new KeyCodec<>() {
+        @Override
+        public String name() {
+            return "long";
+        }
+
+        @Override
+        public void write(Long key, DataOutput out) throws IOException {
+            out.writeLong(key);
+        }
+
+        @Override
+        public Long read(DataInput in) throws IOException {
+            return in.readLong();
+        }
+    };
+
+    /**
+     * Codec for String keys, as their length in UTF-8 followed by the UTF-8 bytes.
+     */
+    KeyCodec<String> STRING = new KeyCodec<>() {
+        @Override
+        public String name() {
+            return "string";
+        }
+
+        @Override
+        public void write(String key, DataOutput out) throws IOException {
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        @Override
+        public String read(DataInput in) throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("Invalid string length: " + length);
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+}
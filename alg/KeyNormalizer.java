@@ -0,0 +1,49 @@
+package alg;
+
+/**
+ * Maps keys to 64-bit prefixes that are ordered like the keys, so that a TwoFourTree can decide most
+ * comparisons on the prefixes it stores next to the keys, and only calls compareTo when two prefixes
+ * are equal. The prefixes must be consistent with compareTo: if a.compareTo(b) < 0, then
+ * prefix(a) <= prefix(b), as signed longs. Equal prefixes say nothing about the order of the keys.
+ * @param <K> Type of the keys.
+ */
+@FunctionalInterface
+public interface KeyNormalizer<K> {
+    /**
+     * Get the prefix of a key.
+     * @param key The key.
+     * @return The prefix.
+     */
+    long prefix(K key);
+
+    /**
+     * Normalizer for Integer keys: the prefix is the value itself, so compareTo is only called for
+     * equal keys. This saves following the reference to each boxed key.
+     */
+    KeyNormalizer<Integer> INT = key -> key;
+
+    /**
+     * Normalizer for Long keys: the prefix is the value itself.
+     */
+    KeyNormalizer<Long> LONG = key -> key;
+
+    /**
+     * Normalizer for String keys. The prefix holds the first 8 characters, one byte each, with the
+     * sign bit flipped so that signed order matches the order of the strings. A character above
+     * 254 is stored as 255, and ends the prefix, so that strings whose prefixes differ only after
+     * such a character get equal prefixes.
+     */
+    KeyNormalizer<String> STRING = key -> {
+        long prefix = 0;
+        int length = Math.min(8, key.length());
+        for (int i = 0; i < length; i++) {
+            char c = key.charAt(i);
+            if (c >= 255) {
+                prefix |= 255L << (56 - 8 * i);
+                break;
+            }
+            prefix |= (long) c << (56 - 8 * i);
+        }
+        return prefix ^ Long.MIN_VALUE;
+    };
+}
@@ -0,0 +1,320 @@
+package alg;
+
+import java.util.Arrays;
+
+/**
+ * A 2-4 tree of long values. It behaves like TwoFourTree, but stores the values in long arrays, so
+ * values are never boxed and comparisons do not go through compareTo.
+ */
+public class LongTwoFourTree {
+
+    private static class Node {
+        /**
+         * The external node. External nodes hold no values or children, so every external
+         * position in every tree refers to this single immutable instance.
+         */
+        private static final Node EXTERNAL = new Node(true);
+
+        /**
+         * Maximum number of values in a node. The arrays have room for one more value, so that
+         * a node can temporarily overflow before it is split.
+         */
+        private static final int MAX_VALUES = 3;
+
+        /**
+         * Values in the node, in ascending order. Only the first count entries are used.
+         */
+        private final long[] values;
+
+        /**
+         * Children of the node. The child at index i should be followed for values smaller than
+         * values[i], the child at index count for values larger than the largest value in the node.
+         */
+        private final Node[] children;
+
+        /**
+         * Number of values in the node.
+         */
+        private int count = 0;
+
+        /**
+         * The parent node of this node.
+         */
+        private Node parent = null;
+
+        /**
+         * Whether this node is an external node.
+         */
+        private final boolean isExternal;
+
+        /**
+         * Create the external node.
+         */
+        private Node(boolean isExternal) {
+            values = null;
+            children = null;
+            this.isExternal = isExternal;
+        }
+
+        /**
+         * Create a new internal node without any values.
+         */
+        Node() {
+            values = new long[MAX_VALUES + 1];
+            children = new Node[MAX_VALUES + 2];
+            isExternal = false;
+        }
+
+        /**
+         * Create a new 2-node.
+         */
+        Node(long value1, Node child1, Node child2) {
+            this();
+            values[0] = value1;
+            children[0] = child1;
+            children[1] = child2;
+            count = 1;
+            adopt(child1);
+            adopt(child2);
+        }
+
+        /**
+         * Insert a value and a corresponding child node (for children smaller than the value) in this node.
+         * @param value Value to insert.
+         * @param child Child node to insert.
+         * @return Index of inserted value.
+         */
+        int insert(long value, Node child) {
+            int i = 0;
+            while (i < count && values[i] < value) {
+                i++;
+            }
+            System.arraycopy(values, i, values, i + 1, count - i);
+            System.arraycopy(children, i, children, i + 1, count + 1 - i);
+            values[i] = value;
+            children[i] = child;
+            adopt(child);
+            count++;
+            return i;
+        }
+
+        /**
+         * Set the child node for a given index.
+         * @param i Index of the child.
+         * @param child New child node.
+         */
+        void replaceChild(int i, Node child) {
+            children[i] = child;
+            adopt(child);
+        }
+
+        /**
+         * Make this node the parent of the given child. The external node is shared, so it never
+         * gets a parent.
+         * @param child The child node.
+         */
+        private void adopt(Node child) {
+            if (!child.isExternal) {
+                child.parent = this;
+            }
+        }
+
+        /**
+         * Move the values and children to the right of the given index to a new node. The value
+         * at the index itself is removed from this node as well, and should be moved to the parent.
+         * @param middle Index of the value to split at.
+         * @return The new node holding the larger values.
+         */
+        Node split(int middle) {
+            Node right = new Node();
+            int rightCount = count - middle - 1;
+            System.arraycopy(values, middle + 1, right.values, 0, rightCount);
+            System.arraycopy(children, middle + 1, right.children, 0, rightCount + 1);
+            for (int i = 0; i <= rightCount; i++) {
+                right.adopt(right.children[i]);
+            }
+            right.count = rightCount;
+            Arrays.fill(children, middle + 1, count + 1, null);
+            count = middle;
+            return right;
+        }
+
+        /**
+         * Find the given value in this node.
+         * @param value Value to look for.
+         * @return Index of the value, or (-(index of the child to follow) - 1) if it is not in this node.
+         */
+        int indexOf(long value) {
+            for (int i = 0; i < count; i++) {
+                if (values[i] == value) {
+                    return i;
+                }
+                if (values[i] > value) {
+                    return -i - 1;
+                }
+            }
+            return -count - 1;
+        }
+
+        @Override
+        public String toString() {
+            if (isExternal) {
+                return "[]";
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append('[');
+            for (int i = 0; i <= count; i++) {
+                if (children[i] != null) {
+                    sb.append(children[i]);
+                }
+                if (i < count) {
+                    sb.append(' ');
+                    sb.append(values[i]);
+                    sb.append(' ');
+                }
+            }
+            sb.append(']');
+            return sb.toString();
+        }
+
+        /**
+         * Verify the invariants for this node in the 2-4 tree, and return the height of the node.
+         * @param min The smallest legal value in this node.
+         * @param max The largest legal value in this node.
+         * @return Height, or -1 if the node violates any invariants.
+         */
+        private int verifyInvariants(long min, long max) {
+            if (this.isExternal) {
+                if (this != EXTERNAL || this.count > 0 || this.children != null) {
+                    System.out.println("External node with childen");
+                    return -1;
+                }
+                return 0;
+            } else {
+                if (this.count < 1 || this.count > MAX_VALUES) {
+                    System.out.println("2-4 invariant violated ("+(this.count + 1)+")");
+                    return -1;
+                }
+                int lastDepth = -1;
+                for (int i = 0; i <= this.count; i++) {
+                    Node child = this.children[i];
+                    boolean hasValue = i < this.count;
+                    long value = hasValue ? this.values[i] : max;
+                    if (child == null) {
+                        System.out.println("Internal node with null child");
+                        return -1;
+                    }
+                    if (!child.isExternal && child.parent != this) {
+                        System.out.println("Incorrect parent pointer");
+                        return -1;
+                    }
+                    if (hasValue && min > value) {
+                        System.out.println("Value " + value + " too small");
+                        return -1;
+                    }
+                    if (hasValue && max < value) {
+                        System.out.println("Value " + value + " too large");
+                        return -1;
+                    }
+                    if (hasValue && i > 0 && value <= this.values[i - 1]) {
+                        System.out.println("Incorrect order between "+this.values[i - 1]+" and "+value);
+                        return -1;
+                    }
+                    int depth = child.verifyInvariants(i == 0 ? min : this.values[i - 1], value);
+                    if (depth == -1) {
+                        System.out.println("Invariant violated in child node");
+                        return -1;
+                    }
+                    if (lastDepth != -1 && depth != lastDepth) {
+                        System.out.println("Depth not equal ("+depth+" and "+lastDepth+")");
+                        return -1;
+                    }
+                    lastDepth = depth;
+                }
+                return lastDepth + 1;
+            }
+        }
+
+        public boolean isExternal() {
+            return isExternal;
+        }
+
+    }
+
+    private Node root = Node.EXTERNAL;
+
+    /**
+     * Add a value to the tree.
+     * @param value The value to add to the tree.
+     * @return Whether the value was added, false if it was already present.
+     */
+    public boolean add(long value) {
+        if (root.isExternal()) {
+            root = new Node(value, Node.EXTERNAL, Node.EXTERNAL);
+            return true;
+        }
+
+        // Find the lowest internal node where the value should be inserted.
+        Node currentNode = root;
+        while (true) {
+            int index = currentNode.indexOf(value);
+            if (index >= 0) {
+                return false;
+            }
+            Node child = currentNode.children[-index - 1];
+            if (child.isExternal()) {
+                break;
+            }
+            currentNode = child;
+        }
+
+        currentNode.insert(value, Node.EXTERNAL);
+
+        while (currentNode.count > Node.MAX_VALUES) {
+            int middle = currentNode.count / 2;
+            long middleValue = currentNode.values[middle];
+            Node right = currentNode.split(middle);
+
+            if (currentNode.parent == null) {
+                root = new Node(middleValue, currentNode, right);
+                break;
+            } else {
+                Node left = currentNode;
+                currentNode = currentNode.parent;
+                int indexOfMiddleValue = currentNode.insert(middleValue, left);
+                currentNode.replaceChild(indexOfMiddleValue + 1, right);
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Verify the invariants for the 2-4 tree.
+     */
+    public void verifyInvariants() {
+        if (root.verifyInvariants(Long.MIN_VALUE, Long.MAX_VALUE) == -1) {
+            throw new IllegalStateException();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+
+    public static void main(String[] args) {
+        LongTwoFourTree tree = new LongTwoFourTree();
+
+        try {
+            for (long n : new long[] {5, 3, 7, 6, 1, 2, 9, 8, 10, 12, 11, 13}) {
+                tree.add(n);
+                tree.verifyInvariants();
+                System.out.println(tree);
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace(System.err);
+        }
+        // expected: [[[[] 1 [] 2 []] 3 [[] 5 []] 6 [[] 7 [] 8 []]] 9 [[[] 10 [] 11 []] 12 [[] 13 []]]]
+    }
+}
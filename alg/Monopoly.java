@@ -1,3 +1,5 @@
+package alg;
+
 import java.util.*;
 
 public class Monopoly {
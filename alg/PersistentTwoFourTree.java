@@ -0,0 +1,470 @@
+package alg;
+
+import java.util.Arrays;
+
+/**
+ * A persistent 2-4 tree. Nodes are never modified after they are created: add and remove copy the
+ * nodes on the path from the root to the changed node, and share all other nodes with the previous
+ * version. This makes snapshot() O(1), and a snapshot is not affected by later changes to the tree
+ * it was taken from (or the other way around), so snapshots can be read by other threads while
+ * the tree keeps changing.
+ *
+ * Since nodes are shared between versions, they cannot have a parent pointer. Instead, add and
+ * remove recurse down the tree and build the new path on the way back up.
+ */
+public class PersistentTwoFourTree<K extends Comparable<K>> {
+
+    private static class Node<K extends Comparable<K>> {
+        /**
+         * Maximum number of values in a node.
+         */
+        private static final int MAX_VALUES = 3;
+
+        /**
+         * Values in the node, in ascending order. The array has exactly the number of values in
+         * the node, since the node never changes.
+         */
+        private final K[] values;
+
+        /**
+         * Children of the node, or null if all children are external nodes.
+         */
+        private final Node<K>[] children;
+
+        Node(K[] values, Node<K>[] children) {
+            this.values = values;
+            this.children = children;
+        }
+
+        boolean isLeaf() {
+            return children == null;
+        }
+
+        /**
+         * Find the given value in this node.
+         * @param value Value to look for.
+         * @return Index of the value, or (-(index of the child to follow) - 1) if it is not in this node.
+         */
+        int indexOf(K value) {
+            for (int i = 0; i < values.length; i++) {
+                int cmp = values[i].compareTo(value);
+                if (cmp == 0) {
+                    return i;
+                }
+                if (cmp > 0) {
+                    return -i - 1;
+                }
+            }
+            return -values.length - 1;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append('[');
+            for (int i = 0; i <= values.length; i++) {
+                sb.append(children != null ? children[i] : "[]");
+                if (i < values.length) {
+                    sb.append(' ');
+                    sb.append(values[i]);
+                    sb.append(' ');
+                }
+            }
+            sb.append(']');
+            return sb.toString();
+        }
+
+        /**
+         * Verify the invariants for this node in the 2-4 tree, and return the height of the node.
+         * @param min The smallest legal value in this node.
+         * @param max The largest legal value in this node.
+         * @return Height, or -1 if the node violates any invariants.
+         */
+        private int verifyInvariants(K min, K max) {
+            if (this.values.length < 1 || this.values.length > MAX_VALUES) {
+                System.out.println("2-4 invariant violated ("+(this.values.length + 1)+")");
+                return -1;
+            }
+            if (this.children != null && this.children.length != this.values.length + 1) {
+                System.out.println("Wrong number of children");
+                return -1;
+            }
+            K last = null;
+            int lastDepth = -1;
+            for (int i = 0; i <= this.values.length; i++) {
+                K value = i < this.values.length ? this.values[i] : null;
+                if (value == null && i < this.values.length) {
+                    System.out.println("Non-last value is null");
+                    return -1;
+                }
+                if (value != null && min != null && min.compareTo(value) > 0) {
+                    System.out.println("Value " + value + " too small");
+                    return -1;
+                }
+                if (value != null && max != null && max.compareTo(value) < 0) {
+                    System.out.println("Value " + value + " too large");
+                    return -1;
+                }
+                if (value != null && last != null && value.compareTo(last) <= 0) {
+                    System.out.println("Incorrect order between "+last+" and "+value);
+                    return -1;
+                }
+                int depth = 0;
+                if (this.children != null) {
+                    if (this.children[i] == null) {
+                        System.out.println("Internal node with null child");
+                        return -1;
+                    }
+                    depth = this.children[i].verifyInvariants(last == null ? min : last, value == null ? max : value);
+                    if (depth == -1) {
+                        System.out.println("Invariant violated in child node");
+                        return -1;
+                    }
+                }
+                if (lastDepth != -1 && depth != lastDepth) {
+                    System.out.println("Depth not equal ("+depth+" and "+lastDepth+")");
+                    return -1;
+                }
+                last = value;
+                lastDepth = depth;
+            }
+            return lastDepth + 1;
+        }
+    }
+
+    /**
+     * The root node, or null if the tree is empty.
+     */
+    private Node<K> root;
+
+    /**
+     * Number of values in the tree.
+     */
+    private int size;
+
+    /**
+     * The value that was replaced or removed by the current add or remove.
+     */
+    private K previous;
+
+    /**
+     * Set by insert when the node it returns was split: the middle value and the new right node.
+     */
+    private K splitValue;
+    private Node<K> splitRight;
+
+    /**
+     * Create an empty tree.
+     */
+    public PersistentTwoFourTree() {
+        this(null, 0);
+    }
+
+    private PersistentTwoFourTree(Node<K> root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Take a snapshot of the tree in O(1). The snapshot shares all nodes with this tree, and later
+     * changes to either of them do not affect the other.
+     * @return A tree holding the same values as this tree.
+     */
+    public PersistentTwoFourTree<K> snapshot() {
+        return new PersistentTwoFourTree<>(root, size);
+    }
+
+    /**
+     * Add a value to the tree. Only the nodes on the path to the value are copied.
+     * @param value The value to add to the tree.
+     * @return The old value that was stored in the tree, if it was already present, or null.
+     */
+    @SuppressWarnings("unchecked")
+    public K add(K value) {
+        previous = null;
+        if (root == null) {
+            root = new Node<>((K[]) new Comparable[] {value}, null);
+        } else {
+            Node<K> node = insert(root, value);
+            if (splitRight != null) {
+                node = new Node<>((K[]) new Comparable[] {splitValue}, (Node<K>[]) new Node[] {node, splitRight});
+                splitValue = null;
+                splitRight = null;
+            }
+            root = node;
+        }
+        if (previous == null) {
+            size++;
+        }
+        K old = previous;
+        previous = null;
+        return old;
+    }
+
+    /**
+     * Insert a value into a copy of a subtree. If the copy has too many values, it is split: the
+     * left half is returned, and the middle value and right half are stored in splitValue and splitRight.
+     * @param node The root of the subtree.
+     * @param value The value to insert.
+     * @return The root of the new subtree.
+     */
+    private Node<K> insert(Node<K> node, K value) {
+        int index = node.indexOf(value);
+        if (index >= 0) {
+            previous = node.values[index];
+            K[] values = node.values.clone();
+            values[index] = value;
+            return new Node<>(values, node.children);
+        }
+        int i = -index - 1;
+        if (node.isLeaf()) {
+            return withValue(node.values, null, i, value, null);
+        }
+        Node<K> child = insert(node.children[i], value);
+        if (splitRight == null) {
+            Node<K>[] children = node.children.clone();
+            children[i] = child;
+            return new Node<>(node.values, children);
+        }
+        K middle = splitValue;
+        Node<K> right = splitRight;
+        splitValue = null;
+        splitRight = null;
+        Node<K>[] children = node.children.clone();
+        children[i] = child;
+        return withValue(node.values, children, i, middle, right);
+    }
+
+    /**
+     * Create a node with an extra value, and split it if it has too many values.
+     * @param values The values of the original node.
+     * @param children The children of the original node, or null for a leaf.
+     * @param i The index of the new value.
+     * @param value The new value.
+     * @param right The child to the right of the new value, or null for a leaf.
+     * @return The new node, or its left half if it was split.
+     */
+    @SuppressWarnings("unchecked")
+    private Node<K> withValue(K[] values, Node<K>[] children, int i, K value, Node<K> right) {
+        K[] newValues = (K[]) new Comparable[values.length + 1];
+        System.arraycopy(values, 0, newValues, 0, i);
+        newValues[i] = value;
+        System.arraycopy(values, i, newValues, i + 1, values.length - i);
+        Node<K>[] newChildren = null;
+        if (children != null) {
+            newChildren = (Node<K>[]) new Node[children.length + 1];
+            System.arraycopy(children, 0, newChildren, 0, i + 1);
+            newChildren[i + 1] = right;
+            System.arraycopy(children, i + 1, newChildren, i + 2, children.length - i - 1);
+        }
+        if (newValues.length <= Node.MAX_VALUES) {
+            return new Node<>(newValues, newChildren);
+        }
+        int middle = newValues.length / 2;
+        splitValue = newValues[middle];
+        splitRight = new Node<>(Arrays.copyOfRange(newValues, middle + 1, newValues.length),
+                newChildren == null ? null : Arrays.copyOfRange(newChildren, middle + 1, newChildren.length));
+        return new Node<>(Arrays.copyOf(newValues, middle),
+                newChildren == null ? null : Arrays.copyOf(newChildren, middle + 1));
+    }
+
+    /**
+     * Remove a value from the tree. Only the nodes on the path to the value, and the siblings that
+     * are used to fix underflow, are copied.
+     * @param value The value to remove.
+     * @return The value that was stored in the tree, or null if it was not present.
+     */
+    public K remove(K value) {
+        if (root == null) {
+            return null;
+        }
+        previous = null;
+        Node<K> node = delete(root, value);
+        K old = previous;
+        previous = null;
+        if (old == null) {
+            return null;
+        }
+        if (node.values.length == 0) {
+            node = node.isLeaf() ? null : node.children[0];
+        }
+        root = node;
+        size--;
+        return old;
+    }
+
+    /**
+     * Remove a value from a copy of a subtree. The copy may be left with no values, which the
+     * caller has to fix.
+     * @param node The root of the subtree.
+     * @param value The value to remove.
+     * @return The root of the new subtree, or the original node if the value was not found.
+     */
+    @SuppressWarnings("unchecked")
+    private Node<K> delete(Node<K> node, K value) {
+        int index = node.indexOf(value);
+        if (node.isLeaf()) {
+            if (index < 0) {
+                return node;
+            }
+            previous = node.values[index];
+            K[] values = (K[]) new Comparable[node.values.length - 1];
+            System.arraycopy(node.values, 0, values, 0, index);
+            System.arraycopy(node.values, index + 1, values, index, values.length - index);
+            return new Node<>(values, null);
+        }
+
+        K[] values = node.values;
+        int i;
+        Node<K> child;
+        if (index >= 0) {
+            // Replace the value with its successor, and remove the successor from the leaf instead.
+            K removed = node.values[index];
+            i = index + 1;
+            Node<K> successor = node.children[i];
+            while (!successor.isLeaf()) {
+                successor = successor.children[0];
+            }
+            child = delete(node.children[i], successor.values[0]);
+            values = node.values.clone();
+            values[index] = successor.values[0];
+            previous = removed;
+        } else {
+            i = -index - 1;
+            child = delete(node.children[i], value);
+            if (previous == null) {
+                return node;
+            }
+        }
+        Node<K>[] children = node.children.clone();
+        children[i] = child;
+        if (child.values.length > 0) {
+            return new Node<>(values, children);
+        }
+        return fixUnderflow(values, children, i);
+    }
+
+    /**
+     * Fix a child without values, by moving a value from a sibling or by merging with a sibling.
+     * @param values The values of the parent.
+     * @param children The (copied) children of the parent.
+     * @param i The index of the child without values.
+     * @return The new parent node, which may have no values itself after a merge.
+     */
+    @SuppressWarnings("unchecked")
+    private Node<K> fixUnderflow(K[] values, Node<K>[] children, int i) {
+        Node<K> child = children[i];
+        Node<K> onlyChild = child.isLeaf() ? null : child.children[0];
+        if (i > 0 && children[i - 1].values.length > 1) {
+            Node<K> left = children[i - 1];
+            int last = left.values.length - 1;
+            children[i - 1] = new Node<>(Arrays.copyOf(left.values, last),
+                    left.isLeaf() ? null : Arrays.copyOf(left.children, last + 1));
+            children[i] = new Node<>((K[]) new Comparable[] {values[i - 1]},
+                    left.isLeaf() ? null : (Node<K>[]) new Node[] {left.children[last + 1], onlyChild});
+            values = values.clone();
+            values[i - 1] = left.values[last];
+            return new Node<>(values, children);
+        }
+        if (i < values.length && children[i + 1].values.length > 1) {
+            Node<K> right = children[i + 1];
+            children[i + 1] = new Node<>(Arrays.copyOfRange(right.values, 1, right.values.length),
+                    right.isLeaf() ? null : Arrays.copyOfRange(right.children, 1, right.children.length));
+            children[i] = new Node<>((K[]) new Comparable[] {values[i]},
+                    right.isLeaf() ? null : (Node<K>[]) new Node[] {onlyChild, right.children[0]});
+            values = values.clone();
+            values[i] = right.values[0];
+            return new Node<>(values, children);
+        }
+
+        // Merge with a sibling (which has a single value) and the value between them.
+        int l = i > 0 ? i - 1 : i;
+        Node<K> left = children[l];
+        Node<K> right = children[l + 1];
+        K[] mergedValues = (K[]) new Comparable[left.values.length + 1 + right.values.length];
+        System.arraycopy(left.values, 0, mergedValues, 0, left.values.length);
+        mergedValues[left.values.length] = values[l];
+        System.arraycopy(right.values, 0, mergedValues, left.values.length + 1, right.values.length);
+        Node<K>[] mergedChildren = null;
+        if (!left.isLeaf()) {
+            mergedChildren = (Node<K>[]) new Node[left.children.length + right.children.length];
+            System.arraycopy(left.children, 0, mergedChildren, 0, left.children.length);
+            System.arraycopy(right.children, 0, mergedChildren, left.children.length, right.children.length);
+        }
+
+        K[] newValues = (K[]) new Comparable[values.length - 1];
+        System.arraycopy(values, 0, newValues, 0, l);
+        System.arraycopy(values, l + 1, newValues, l, newValues.length - l);
+        Node<K>[] newChildren = (Node<K>[]) new Node[children.length - 1];
+        System.arraycopy(children, 0, newChildren, 0, l);
+        newChildren[l] = new Node<>(mergedValues, mergedChildren);
+        System.arraycopy(children, l + 2, newChildren, l + 1, newChildren.length - l - 1);
+        return new Node<>(newValues, newChildren);
+    }
+
+    /**
+     * Check whether a value is stored in the tree.
+     * @param value The value to look for.
+     * @return Whether the value is present.
+     */
+    public boolean contains(K value) {
+        Node<K> node = root;
+        while (node != null) {
+            int index = node.indexOf(value);
+            if (index >= 0) {
+                return true;
+            }
+            node = node.isLeaf() ? null : node.children[-index - 1];
+        }
+        return false;
+    }
+
+    /**
+     * Get the number of values in the tree.
+     * @return The number of values.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Verify the invariants for the 2-4 tree.
+     */
+    public void verifyInvariants() {
+        if (root != null && root.verifyInvariants(null, null) == -1) {
+            throw new IllegalStateException();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return root == null ? "[]" : root.toString();
+    }
+
+    public static void main(String[] args) {
+        PersistentTwoFourTree<Integer> tree = new PersistentTwoFourTree<>();
+        PersistentTwoFourTree<Integer> snapshot = null;
+
+        try {
+            for (int n : new int[] {5, 3, 7, 6, 1, 2, 9, 8, 10, 12, 11, 13}) {
+                tree.add(n);
+                tree.verifyInvariants();
+                System.out.println(tree);
+                if (n == 9) {
+                    snapshot = tree.snapshot();
+                }
+            }
+            for (int n : new int[] {9, 1, 5, 12, 3}) {
+                tree.remove(n);
+                tree.verifyInvariants();
+                System.out.println(tree);
+            }
+            snapshot.verifyInvariants();
+            System.out.println(snapshot);
+        } catch (Exception ex) {
+            ex.printStackTrace(System.err);
+        }
+        // expected: [[[[] 1 [] 2 []] 3 [[] 5 []] 6 [[] 7 [] 8 []]] 9 [[[] 10 [] 11 []] 12 [[] 13 []]]]
+        // expected (snapshot): [[[] 1 [] 2 []] 3 [[] 5 []] 6 [[] 7 [] 9 []]]
+    }
+}
@@ -1,3 +1,11 @@
+package alg;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
 public class RedBlackTree<K extends Comparable<K>> {
     public enum Color {
         RED, BLACK;
@@ -29,95 +37,273 @@ public class RedBlackTree<K extends Comparable<K>> {
         }
     }
 
+    public K getElement() {
+        return element;
+    }
+
+    public Color getColor() {
+        return color;
+    }
+
+    public RedBlackTree<K> getLeft() {
+        return left;
+    }
+
+    public RedBlackTree<K> getRight() {
+        return right;
+    }
+
     /**
-     * Verify the invariants for this node, and return the black height of the node.
-     * @param isRoot
-     * @param min
-     * @param max
-     * @return Black height, or -1 if the node violates any invariants.
+     * Check the local invariants of a single node: its color, its element, and the parent pointers
+     * and colors of its children.
+     * @param node The node.
+     * @param isRoot Whether the node is the root of the tree.
+     * @return Description of the violation, or null if the node is valid.
      */
-    private int verifyInvariants(boolean isRoot, K min, K max) {
-        if (isRoot && color != Color.BLACK) {
-            System.out.println("Root is not black");
-            return -1;
+    private static <K extends Comparable<K>> String checkNode(RedBlackTree<K> node, boolean isRoot) {
+        if (isRoot && node.color != Color.BLACK) {
+            return "Root is not black";
         }
-        if ((left != null || right != null) && element == null) {
-            System.out.println("Internal node with null value");
-            return -1;
+        if ((node.left != null || node.right != null) && node.element == null) {
+            return "Internal node with null value";
         }
-        if (left == null && right == null && element != null) {
-            System.out.println("External node with non-null value");
-            return -1;
+        if (node.left == null && node.right == null && node.element != null) {
+            return "External node with non-null value";
         }
-        if (left == null && right == null && color != Color.BLACK) {
-            System.out.println("External node is not black");
-            return -1;
+        if (node.left == null && node.right == null && node.color != Color.BLACK) {
+            return "External node is not black";
         }
-        if (left != null && left.parent != this) {
-            System.out.println("Incorrect parent pointer");
-            return -1;
+        if ((node.left != null && node.left.parent != node) || (node.right != null && node.right.parent != node)) {
+            return "Incorrect parent pointer";
         }
-        if (right != null && right.parent != this) {
-            System.out.println("Incorrect parent pointer");
-            return -1;
+        if (node.color == Color.RED && ((node.left != null && node.left.color != Color.BLACK)
+                || (node.right != null && node.right.color != Color.BLACK))) {
+            return "Child of red node is not black";
         }
-        if (color == Color.RED && left != null && left.color != Color.BLACK) {
-            System.out.println("Chlild of red node is not black");
-            return -1;
-        }
-        if (color == Color.RED && right != null && right.color != Color.BLACK) {
-            System.out.println("Chlild of red node is not black");
-            return -1;
-        }
-        if (element != null && min != null && min.compareTo(element) > 0) {
-            System.out.println("Element " + element + " too small");
-            return -1;
+        return null;
+    }
+
+    /**
+     * Check the invariants of a subtree without recursion. The nodes are visited in order with an
+     * explicit stack, and each element is compared with the previous one; this also checks that it
+     * lies between the elements around the subtree in the nodes above. The number of black nodes
+     * on the way to every missing child must be the same.
+     * @param top The root of the subtree.
+     * @param min The smallest legal element, or null.
+     * @param max The largest legal element, or null.
+     * @param isRoot Whether the subtree is the whole tree.
+     * @return The first violation, or the black height and number of elements of the subtree.
+     */
+    private static <K extends Comparable<K>> InvariantReport check(RedBlackTree<K> top, K min, K max, boolean isRoot) {
+        @SuppressWarnings("unchecked")
+        RedBlackTree<K>[] nodes = (RedBlackTree<K>[]) new RedBlackTree[32];
+        // For each node on the stack: 0 before its left subtree, 1 before its right subtree, 2 when done.
+        int[] states = new int[32];
+        int[] blackDepths = new int[32];
+        nodes[0] = top;
+        blackDepths[0] = top.color == Color.BLACK ? 1 : 0;
+        int depth = 0;
+        int blackHeight = -1;
+        long values = 0;
+        K previous = min;
+        while (depth >= 0) {
+            RedBlackTree<K> node = nodes[depth];
+            int state = states[depth]++;
+            if (state == 2) {
+                depth--;
+                continue;
+            }
+            if (state == 0) {
+                String violation = checkNode(node, isRoot && depth == 0);
+                if (violation != null) {
+                    return InvariantReport.violated(violation);
+                }
+            } else if (node.element != null) {
+                if (previous != null && previous.compareTo(node.element) > 0) {
+                    return InvariantReport.violated(previous == min ? "Element " + node.element + " too small"
+                            : "Incorrect order between " + previous + " and " + node.element);
+                }
+                previous = node.element;
+                values++;
+            }
+            RedBlackTree<K> child = state == 0 ? node.left : node.right;
+            if (child == null) {
+                if (blackHeight == -1) {
+                    blackHeight = blackDepths[depth];
+                } else if (blackDepths[depth] != blackHeight) {
+                    return InvariantReport.violated("Black depth not equal (" + blackDepths[depth] + " and "
+                            + blackHeight + ")");
+                }
+                continue;
+            }
+            depth++;
+            if (depth == nodes.length) {
+                nodes = Arrays.copyOf(nodes, 2 * depth);
+                states = Arrays.copyOf(states, 2 * depth);
+                blackDepths = Arrays.copyOf(blackDepths, 2 * depth);
+            }
+            nodes[depth] = child;
+            states[depth] = 0;
+            blackDepths[depth] = blackDepths[depth - 1] + (child.color == Color.BLACK ? 1 : 0);
         }
-        if (element != null && max != null && max.compareTo(element) < 0) {
-            System.out.println("Element " + element + " too large");
-            return -1;
+        if (previous != null && max != null && previous.compareTo(max) > 0) {
+            return InvariantReport.violated("Element " + previous + " too large");
         }
-        int leftDepth = left != null ? left.verifyInvariants(false, min, element) : 0;
-        if (leftDepth == -1) {
-            System.out.println("Invariant violated in child node");
-            return -1;
+        return InvariantReport.valid(blackHeight, values);
+    }
+
+    /**
+     * Checks the invariants of a subtree, forking a task for each child until the work is divided
+     * into enough tasks to keep the pool busy.
+     */
+    private static class InvariantTask<K extends Comparable<K>> extends RecursiveTask<InvariantReport> {
+        private final RedBlackTree<K> node;
+        private final K min;
+        private final K max;
+        private final boolean isRoot;
+
+        /**
+         * Number of tasks that the subtree may still be divided into.
+         */
+        private final int tasks;
+
+        InvariantTask(RedBlackTree<K> node, K min, K max, boolean isRoot, int tasks) {
+            this.node = node;
+            this.min = min;
+            this.max = max;
+            this.isRoot = isRoot;
+            this.tasks = tasks;
         }
-        int rightDepth = right != null ? right.verifyInvariants(false, element, max) : 0;
-        if (rightDepth == -1) {
-            System.out.println("Invariant violated in child node");
-            return -1;
+
+        @Override
+        protected InvariantReport compute() {
+            if (tasks <= 1 || node.element == null) {
+                return check(node, min, max, isRoot);
+            }
+            String violation = checkNode(node, isRoot);
+            if (violation != null) {
+                return InvariantReport.violated(violation);
+            }
+            if (min != null && min.compareTo(node.element) > 0) {
+                return InvariantReport.violated("Element " + node.element + " too small");
+            }
+            if (max != null && max.compareTo(node.element) < 0) {
+                return InvariantReport.violated("Element " + node.element + " too large");
+            }
+            InvariantTask<K> left = node.left == null ? null
+                    : new InvariantTask<>(node.left, min, node.element, false, tasks / 2);
+            InvariantTask<K> right = node.right == null ? null
+                    : new InvariantTask<>(node.right, node.element, max, false, tasks / 2);
+            if (right != null) {
+                right.fork();
+            }
+            InvariantReport leftReport = left == null ? InvariantReport.valid(0, 0) : left.compute();
+            InvariantReport rightReport = right == null ? InvariantReport.valid(0, 0) : right.join();
+            if (!leftReport.isValid()) {
+                return leftReport;
+            }
+            if (!rightReport.isValid()) {
+                return rightReport;
+            }
+            if (leftReport.height() != rightReport.height()) {
+                return InvariantReport.violated("Black depth not equal (" + leftReport.height() + " and "
+                        + rightReport.height() + ")");
+            }
+            return InvariantReport.valid(leftReport.height() + (node.color == Color.BLACK ? 1 : 0),
+                    leftReport.values() + rightReport.values() + 1);
         }
-        if (leftDepth != rightDepth) {
-            System.out.println("Black depth not equal (" + leftDepth + " and " + rightDepth + ")");
+    }
+
+    /**
+     * Check the invariants of the tree rooted at this node. The check does not recurse, so it works
+     * for trees of any height.
+     * @param parallel Whether to check subtrees in parallel in the common fork-join pool.
+     * @return The first violation that was found, or the black height and number of elements of the tree.
+     */
+    public InvariantReport checkInvariants(boolean parallel) {
+        if (parallel) {
+            int tasks = 8 * ForkJoinPool.getCommonPoolParallelism();
+            return ForkJoinPool.commonPool().invoke(new InvariantTask<>(this, null, null, true, tasks));
         }
-        return leftDepth + (color == Color.BLACK ? 1 : 0);
+        return check(this, null, null, true);
+    }
+
+    /**
+     * Check the invariants of the tree rooted at this node on the calling thread.
+     * @return The first violation that was found, or the black height and number of elements of the tree.
+     */
+    public InvariantReport checkInvariants() {
+        return checkInvariants(false);
     }
 
     /**
      * Verify the invariants for this node.
+     * @throws IllegalStateException If the tree violates an invariant.
      */
     public void verifyInvariants() {
-        if (verifyInvariants(true, null, null) == -1) {
-            throw new IllegalStateException();
+        InvariantReport report = checkInvariants();
+        if (!report.isValid()) {
+            throw new IllegalStateException(report.violation());
+        }
+    }
+
+    /**
+     * Write the tree rooted at this node in the same format as toString, one node at a time, so
+     * that the representation of a large tree never has to be held in memory. The tree is walked
+     * without recursion.
+     * @param out Where to write the tree.
+     * @throws IOException If writing fails.
+     */
+    public void writeTo(Appendable out) throws IOException {
+        @SuppressWarnings("unchecked")
+        RedBlackTree<K>[] nodes = (RedBlackTree<K>[]) new RedBlackTree[32];
+        // For each node on the stack: 0 before its left subtree, 1 before its right subtree, 2 when done.
+        int[] states = new int[32];
+        nodes[0] = this;
+        int depth = 0;
+        while (depth >= 0) {
+            RedBlackTree<K> node = nodes[depth];
+            int state = states[depth]++;
+            RedBlackTree<K> child;
+            if (state == 0) {
+                out.append(node.color == Color.RED ? '<' : '[');
+                child = node.left;
+            } else if (state == 1) {
+                if (node.left != null) {
+                    out.append(' ');
+                }
+                if (node.element != null) {
+                    out.append(String.valueOf(node.element));
+                }
+                if (node.right != null) {
+                    out.append(' ');
+                }
+                child = node.right;
+            } else {
+                out.append(node.color == Color.RED ? '>' : ']');
+                depth--;
+                continue;
+            }
+            if (child != null) {
+                depth++;
+                if (depth == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, 2 * depth);
+                    states = Arrays.copyOf(states, 2 * depth);
+                }
+                nodes[depth] = child;
+                states[depth] = 0;
+            }
         }
     }
 
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
-        sb.append(color == Color.RED ? '<' : '[');
-        if (left != null) {
-            sb.append(left);
-            sb.append(' ');
-        }
-        if (element != null) {
-            sb.append(element);
-        }
-        if (right != null) {
-            sb.append(' ');
-            sb.append(right);
+        try {
+            writeTo(sb);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
         }
-        sb.append(color == Color.RED ? '>' : ']');
         return sb.toString();
     }
 }
@@ -0,0 +1,35 @@
+package alg;
+
+/**
+ * Receives measurements from a TwoFourTree that has metrics enabled with setMetrics. The methods
+ * are called on the thread that performs the operation, right after it finishes, so they should
+ * be cheap.
+ *
+ * Comparisons are the calls to compareTo. In a tree that stores normalized prefixes, the steps of a
+ * search that the prefixes decide on their own are not counted, so the count shows how many
+ * comparisons the prefixes save.
+ */
+public interface TreeMetrics {
+    /**
+     * Called after a value was added.
+     * @param comparisons Number of calls to compareTo made while searching the nodes.
+     * @param splits Number of nodes that were split. For bottom-up insertion this is the depth of
+     *               the split cascade.
+     * @param duplicate Whether the value was already present, so that it only replaced the old value.
+     */
+    void added(int comparisons, int splits, boolean duplicate);
+
+    /**
+     * Called after a value was removed, or was not found.
+     * @param comparisons Number of calls to compareTo made while searching the nodes.
+     * @param found Whether the value was present.
+     */
+    void removed(int comparisons, boolean found);
+
+    /**
+     * Called after a lookup with contains.
+     * @param comparisons Number of calls to compareTo made while searching the nodes.
+     * @param found Whether the value was present.
+     */
+    void searched(int comparisons, boolean found);
+}
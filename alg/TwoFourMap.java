@@ -0,0 +1,743 @@
+package alg;
+
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * A map from keys to values, stored in a 2-4 tree. Each node keeps the values in an array next to
+ * its keys, so get, put, computeIfAbsent, compute and merge each find the key in a single descent
+ * from the root, and a read-modify-write of a value stores the result without searching again.
+ *
+ * Values must not be null. As in java.util.Map, a function that returns null removes the key, or
+ * does not add it.
+ */
+public class TwoFourMap<K extends Comparable<K>, V> {
+
+    private static class Node<K extends Comparable<K>, V> {
+        /**
+         * The external node. External nodes hold no keys or children, so every external
+         * position in every tree refers to this single immutable instance.
+         */
+        private static final Node<?, ?> EXTERNAL = new Node<>(true);
+
+        /**
+         * Maximum number of keys in a node. The arrays have room for one more key, so that a node
+         * can temporarily overflow before it is split.
+         */
+        private static final int MAX_KEYS = 3;
+
+        /**
+         * Keys in the node, in ascending order. Only the first count entries are used.
+         */
+        private final K[] keys;
+
+        /**
+         * Values in the node: values[i] belongs to keys[i].
+         */
+        private final V[] values;
+
+        /**
+         * Children of the node. The child at index i should be followed for keys smaller than
+         * keys[i], the child at index count for keys larger than the largest key in the node.
+         */
+        private final Node<K, V>[] children;
+
+        /**
+         * Number of keys in the node.
+         */
+        private int count = 0;
+
+        /**
+         * Whether this node is an external node.
+         */
+        private final boolean isExternal;
+
+        /**
+         * Create the external node.
+         */
+        private Node(boolean isExternal) {
+            keys = null;
+            values = null;
+            children = null;
+            this.isExternal = isExternal;
+        }
+
+        /**
+         * Create a new internal node without any keys.
+         */
+        @SuppressWarnings("unchecked")
+        Node() {
+            keys = (K[]) new Comparable[MAX_KEYS + 1];
+            values = (V[]) new Object[MAX_KEYS + 1];
+            children = (Node<K, V>[]) new Node[MAX_KEYS + 2];
+            isExternal = false;
+        }
+
+        /**
+         * Create a new node with a single key.
+         */
+        Node(K key, V value, Node<K, V> child1, Node<K, V> child2) {
+            this();
+            keys[0] = key;
+            values[0] = value;
+            children[0] = child1;
+            children[1] = child2;
+            count = 1;
+        }
+
+        /**
+         * Get the external node.
+         */
+        @SuppressWarnings("unchecked")
+        static <K extends Comparable<K>, V> Node<K, V> external() {
+            return (Node<K, V>) EXTERNAL;
+        }
+
+        /**
+         * Insert a key with its value and the child node to the right of it (for keys larger than
+         * the key) in this node.
+         * @param i Index of the key, which must be the index of the child that is split by it.
+         * @param key Key to insert.
+         * @param value Value of the key.
+         * @param right Child node to insert.
+         */
+        void insert(int i, K key, V value, Node<K, V> right) {
+            System.arraycopy(keys, i, keys, i + 1, count - i);
+            System.arraycopy(values, i, values, i + 1, count - i);
+            System.arraycopy(children, i + 1, children, i + 2, count - i);
+            keys[i] = key;
+            values[i] = value;
+            children[i + 1] = right;
+            count++;
+        }
+
+        /**
+         * Remove a key with its value and the child node to the right of it from this node.
+         * @param i Index of the key.
+         */
+        void remove(int i) {
+            System.arraycopy(keys, i + 1, keys, i, count - i - 1);
+            System.arraycopy(values, i + 1, values, i, count - i - 1);
+            System.arraycopy(children, i + 2, children, i + 1, count - i - 1);
+            count--;
+            keys[count] = null;
+            values[count] = null;
+            children[count + 1] = null;
+        }
+
+        /**
+         * Move one key from the left sibling of a child through this node into the child.
+         * @param i Index of the child that receives the key.
+         */
+        void transferFromLeft(int i) {
+            Node<K, V> left = children[i - 1];
+            Node<K, V> child = children[i];
+            child.insertFirst(keys[i - 1], values[i - 1], left.children[left.count]);
+            keys[i - 1] = left.keys[left.count - 1];
+            values[i - 1] = left.values[left.count - 1];
+            left.count--;
+            left.keys[left.count] = null;
+            left.values[left.count] = null;
+            left.children[left.count + 1] = null;
+        }
+
+        /**
+         * Move one key from the right sibling of a child through this node into the child.
+         * @param i Index of the child that receives the key.
+         */
+        void transferFromRight(int i) {
+            Node<K, V> child = children[i];
+            Node<K, V> right = children[i + 1];
+            child.keys[child.count] = keys[i];
+            child.values[child.count] = values[i];
+            child.children[child.count + 1] = right.children[0];
+            child.count++;
+            keys[i] = right.keys[0];
+            values[i] = right.values[0];
+            System.arraycopy(right.keys, 1, right.keys, 0, right.count - 1);
+            System.arraycopy(right.values, 1, right.values, 0, right.count - 1);
+            System.arraycopy(right.children, 1, right.children, 0, right.count);
+            right.count--;
+            right.keys[right.count] = null;
+            right.values[right.count] = null;
+            right.children[right.count + 1] = null;
+        }
+
+        /**
+         * Insert a key with its value and the child node to the left of it at the front of this node.
+         */
+        private void insertFirst(K key, V value, Node<K, V> left) {
+            System.arraycopy(keys, 0, keys, 1, count);
+            System.arraycopy(values, 0, values, 1, count);
+            System.arraycopy(children, 0, children, 1, count + 1);
+            keys[0] = key;
+            values[0] = value;
+            children[0] = left;
+            count++;
+        }
+
+        /**
+         * Merge two neighbouring children, together with the key between them, into the left one.
+         * @param i Index of the key between the children.
+         */
+        void fuse(int i) {
+            Node<K, V> left = children[i];
+            Node<K, V> right = children[i + 1];
+            left.keys[left.count] = keys[i];
+            left.values[left.count] = values[i];
+            System.arraycopy(right.keys, 0, left.keys, left.count + 1, right.count);
+            System.arraycopy(right.values, 0, left.values, left.count + 1, right.count);
+            System.arraycopy(right.children, 0, left.children, left.count + 1, right.count + 1);
+            left.count += right.count + 1;
+            remove(i);
+        }
+
+        /**
+         * Move the keys and children to the right of the given index to a new node. The key at the
+         * index itself is removed from this node as well, and should be moved to the parent.
+         * @param middle Index of the key to split at.
+         * @return The new node holding the larger keys.
+         */
+        Node<K, V> split(int middle) {
+            Node<K, V> right = new Node<>();
+            int rightCount = count - middle - 1;
+            System.arraycopy(keys, middle + 1, right.keys, 0, rightCount);
+            System.arraycopy(values, middle + 1, right.values, 0, rightCount);
+            System.arraycopy(children, middle + 1, right.children, 0, rightCount + 1);
+            right.count = rightCount;
+            Arrays.fill(keys, middle, count, null);
+            Arrays.fill(values, middle, count, null);
+            Arrays.fill(children, middle + 1, count + 1, null);
+            count = middle;
+            return right;
+        }
+
+        /**
+         * Find the given key in this node.
+         * @param key Key to look for.
+         * @return Index of the key, or (-(index of the child to follow) - 1) if it is not in this node.
+         */
+        int indexOf(K key) {
+            int lo = 0;
+            int hi = count - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = keys[mid].compareTo(key);
+                if (cmp < 0) {
+                    lo = mid + 1;
+                } else if (cmp > 0) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -lo - 1;
+        }
+
+        public boolean isExternal() {
+            return isExternal;
+        }
+
+        @Override
+        public String toString() {
+            if (isExternal) {
+                return "[]";
+            }
+            StringBuilder sb = new StringBuilder();
+            sb.append('[');
+            for (int i = 0; i <= count; i++) {
+                sb.append(children[i]);
+                if (i < count) {
+                    sb.append(' ').append(keys[i]).append('=').append(values[i]).append(' ');
+                }
+            }
+            sb.append(']');
+            return sb.toString();
+        }
+
+        /**
+         * Verify the invariants for this node in the 2-4 tree, and return the height of the node.
+         * @param min All keys must be larger than this key, or null if there is no lower bound.
+         * @param max All keys must be smaller than this key, or null if there is no upper bound.
+         * @return Height of the node.
+         * @throws IllegalStateException If the node violates any invariant.
+         */
+        int verifyInvariants(K min, K max) {
+            if (isExternal) {
+                if (this != EXTERNAL) {
+                    throw new IllegalStateException("External node that is not the shared external node");
+                }
+                return 0;
+            }
+            if (count < 1 || count > MAX_KEYS) {
+                throw new IllegalStateException("2-4 invariant violated (" + (count + 1) + ")");
+            }
+            int height = -1;
+            for (int i = 0; i <= count; i++) {
+                K low = i == 0 ? min : keys[i - 1];
+                K high = i == count ? max : keys[i];
+                if (i < count && ((low != null && low.compareTo(keys[i]) >= 0) || values[i] == null)) {
+                    throw new IllegalStateException("Key " + keys[i] + " out of order or without value");
+                }
+                if (children[i] == null) {
+                    throw new IllegalStateException("Internal node with null child");
+                }
+                int childHeight = children[i].verifyInvariants(low, high);
+                if (height != -1 && childHeight != height) {
+                    throw new IllegalStateException("Depth not equal (" + childHeight + " and " + height + ")");
+                }
+                height = childHeight;
+            }
+            if (max != null && max.compareTo(keys[count - 1]) <= 0) {
+                throw new IllegalStateException("Key " + keys[count - 1] + " too large");
+            }
+            return height + 1;
+        }
+    }
+
+    private Node<K, V> root = Node.external();
+
+    /**
+     * Number of keys in the map.
+     */
+    private int size = 0;
+
+    /**
+     * Number of structural changes to the map, used to detect a function passed to compute or
+     * merge that changed the map, which makes the path to the key stale.
+     */
+    private int modCount = 0;
+
+    /**
+     * Number of descents, used to detect a function passed to compute or merge that searched the
+     * map, which overwrites the path to the key without changing the structure.
+     */
+    private int descents = 0;
+
+    /**
+     * Nodes on the path of the latest descent, from the root down. Nodes do not point to their
+     * parents, so the path is used to walk back up when splitting or fixing underflow.
+     */
+    @SuppressWarnings("unchecked")
+    private Node<K, V>[] pathNodes = (Node<K, V>[]) new Node[8];
+
+    /**
+     * For each node on the path, the index of the child that the path continues with.
+     */
+    private int[] pathIndices = new int[8];
+
+    /**
+     * Level of the last node on the path, or -1 if the map is empty.
+     */
+    private int level = -1;
+
+    /**
+     * Store a node on the path, growing the path arrays if needed.
+     * @param level The level of the node.
+     * @param node The node.
+     */
+    private void setPath(int level, Node<K, V> node) {
+        if (level >= pathNodes.length) {
+            pathNodes = Arrays.copyOf(pathNodes, 2 * level);
+            pathIndices = Arrays.copyOf(pathIndices, 2 * level);
+        }
+        pathNodes[level] = node;
+    }
+
+    /**
+     * Search for a key from the root, and record the path to it.
+     * @param key The key.
+     * @return Index of the key in the last node on the path, or (-(index of the child to follow) - 1)
+     *         if the key is not present, in which case the last node on the path is the lowest
+     *         internal node where it belongs.
+     */
+    private int descend(K key) {
+        Objects.requireNonNull(key);
+        descents++;
+        if (root.isExternal()) {
+            level = -1;
+            return -1;
+        }
+        int level = 0;
+        Node<K, V> node = root;
+        setPath(0, node);
+        while (true) {
+            int index = node.indexOf(key);
+            if (index >= 0) {
+                this.level = level;
+                return index;
+            }
+            pathIndices[level] = -index - 1;
+            Node<K, V> child = node.children[-index - 1];
+            if (child.isExternal()) {
+                this.level = level;
+                return index;
+            }
+            setPath(++level, child);
+            node = child;
+        }
+    }
+
+    /**
+     * Insert a key at the end of the path that descend recorded, and split the nodes that overflow
+     * on the way back up.
+     * @param i Index in the last node on the path where the key belongs.
+     * @param key The key, which must not be present.
+     * @param value The value.
+     */
+    private void insertAt(int i, K key, V value) {
+        size++;
+        modCount++;
+        if (level < 0) {
+            root = new Node<>(key, value, Node.external(), Node.external());
+            return;
+        }
+        int level = this.level;
+        Node<K, V> currentNode = pathNodes[level];
+        currentNode.insert(i, key, value, Node.external());
+        while (currentNode.count > Node.MAX_KEYS) {
+            int middle = currentNode.count / 2;
+            K middleKey = currentNode.keys[middle];
+            V middleValue = currentNode.values[middle];
+            Node<K, V> right = currentNode.split(middle);
+            if (level == 0) {
+                root = new Node<>(middleKey, middleValue, currentNode, right);
+                break;
+            }
+            level--;
+            currentNode = pathNodes[level];
+            currentNode.insert(pathIndices[level], middleKey, middleValue, right);
+        }
+    }
+
+    /**
+     * Remove a key from the end of the path that descend recorded, and fix the nodes that underflow
+     * on the way back up.
+     * @param index Index of the key in the last node on the path.
+     */
+    private void removeAt(int index) {
+        size--;
+        modCount++;
+        int level = this.level;
+        Node<K, V> currentNode = pathNodes[level];
+
+        // Keys can only be removed from the lowest internal nodes, so swap with the successor.
+        if (!currentNode.children[0].isExternal()) {
+            Node<K, V> successor = currentNode.children[index + 1];
+            pathIndices[level] = index + 1;
+            setPath(++level, successor);
+            while (!successor.children[0].isExternal()) {
+                pathIndices[level] = 0;
+                successor = successor.children[0];
+                setPath(++level, successor);
+            }
+            currentNode.keys[index] = successor.keys[0];
+            currentNode.values[index] = successor.values[0];
+            currentNode = successor;
+            index = 0;
+        }
+        currentNode.remove(index);
+
+        // Fix underflow by taking a key from a sibling, or else by merging with a sibling.
+        while (currentNode.count == 0) {
+            if (level == 0) {
+                root = currentNode.children[0];
+                break;
+            }
+            Node<K, V> parent = pathNodes[--level];
+            int i = pathIndices[level];
+            if (i > 0 && parent.children[i - 1].count > 1) {
+                parent.transferFromLeft(i);
+                break;
+            } else if (i < parent.count && parent.children[i + 1].count > 1) {
+                parent.transferFromRight(i);
+                break;
+            } else {
+                parent.fuse(i > 0 ? i - 1 : i);
+                currentNode = parent;
+            }
+        }
+    }
+
+    /**
+     * Check the path to a key after calling a function, which may have used the map. Throw if the
+     * function changed the structure of the map, since the path to the key is stale then. If it only
+     * searched the map or replaced values, the path was overwritten, so search the key again.
+     * @param key The key.
+     * @param index The result of descend before the function was called.
+     * @param expectedModCount The number of structural changes before the function was called.
+     * @param expectedDescents The number of descents before the function was called.
+     * @return The result of descend for the key.
+     */
+    private int checkPath(K key, int index, int expectedModCount, int expectedDescents) {
+        if (modCount != expectedModCount) {
+            throw new ConcurrentModificationException();
+        }
+        return descents == expectedDescents ? index : descend(key);
+    }
+
+    /**
+     * Get the value of a key.
+     * @param key The key to look for.
+     * @return The value, or null if the key is not present.
+     */
+    public V get(K key) {
+        Objects.requireNonNull(key);
+        Node<K, V> node = root;
+        while (!node.isExternal()) {
+            int index = node.indexOf(key);
+            if (index >= 0) {
+                return node.values[index];
+            }
+            node = node.children[-index - 1];
+        }
+        return null;
+    }
+
+    /**
+     * Check whether a key is present.
+     * @param key The key to look for.
+     * @return Whether the key is present.
+     */
+    public boolean containsKey(K key) {
+        return get(key) != null;
+    }
+
+    /**
+     * Set the value of a key.
+     * @param key The key.
+     * @param value The new value.
+     * @return The old value, or null if the key was not present.
+     */
+    public V put(K key, V value) {
+        Objects.requireNonNull(value);
+        int index = descend(key);
+        if (index >= 0) {
+            Node<K, V> node = pathNodes[level];
+            V old = node.values[index];
+            node.values[index] = value;
+            return old;
+        }
+        insertAt(-index - 1, key, value);
+        return null;
+    }
+
+    /**
+     * Remove a key.
+     * @param key The key.
+     * @return The value of the key, or null if it was not present.
+     */
+    public V remove(K key) {
+        int index = descend(key);
+        if (index < 0) {
+            return null;
+        }
+        V old = pathNodes[level].values[index];
+        removeAt(index);
+        return old;
+    }
+
+    /**
+     * Get the value of a key, and if it is not present, add it with a value computed from the key.
+     * @param key The key.
+     * @param mappingFunction Computes the value of a new key. If it returns null, the key is not added.
+     * @return The current value of the key, or null if it is not present.
+     * @throws ConcurrentModificationException If the function added or removed keys.
+     */
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        int index = descend(key);
+        if (index >= 0) {
+            return pathNodes[level].values[index];
+        }
+        int expectedModCount = modCount;
+        int expectedDescents = descents;
+        V value = mappingFunction.apply(key);
+        index = checkPath(key, index, expectedModCount, expectedDescents);
+        if (value != null) {
+            insertAt(-index - 1, key, value);
+        }
+        return value;
+    }
+
+    /**
+     * Replace the value of a key with a value computed from the key and its old value.
+     * @param key The key.
+     * @param remappingFunction Computes the new value from the key and the old value, which is null
+     *                          if the key is not present. If it returns null, the key is removed.
+     * @return The new value, or null if the key is not present anymore.
+     * @throws ConcurrentModificationException If the function added or removed keys.
+     */
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        int index = descend(key);
+        V old = index >= 0 ? pathNodes[level].values[index] : null;
+        int expectedModCount = modCount;
+        int expectedDescents = descents;
+        V value = remappingFunction.apply(key, old);
+        index = checkPath(key, index, expectedModCount, expectedDescents);
+        store(index, key, value);
+        return value;
+    }
+
+    /**
+     * Add a key with the given value if it is not present, or else replace its value with a
+     * combination of the old and the given value.
+     * @param key The key.
+     * @param value The value of a new key, and the second argument of the function.
+     * @param remappingFunction Combines the old value and the given value. If it returns null, the
+     *                          key is removed.
+     * @return The new value, or null if the key is not present anymore.
+     * @throws ConcurrentModificationException If the function added or removed keys.
+     */
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(value);
+        int index = descend(key);
+        if (index < 0) {
+            insertAt(-index - 1, key, value);
+            return value;
+        }
+        int expectedModCount = modCount;
+        int expectedDescents = descents;
+        V newValue = remappingFunction.apply(pathNodes[level].values[index], value);
+        index = checkPath(key, index, expectedModCount, expectedDescents);
+        store(index, key, newValue);
+        return newValue;
+    }
+
+    /**
+     * Store the result of a function at the position that descend found for a key.
+     * @param index The result of descend.
+     * @param key The key.
+     * @param value The new value, or null to remove the key.
+     */
+    private void store(int index, K key, V value) {
+        if (index >= 0) {
+            if (value != null) {
+                pathNodes[level].values[index] = value;
+            } else {
+                removeAt(index);
+            }
+        } else if (value != null) {
+            insertAt(-index - 1, key, value);
+        }
+    }
+
+    /**
+     * Get the number of keys.
+     * @return The number of keys.
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Perform an action for every key and its value, in ascending order of the keys.
+     * @param action The action.
+     */
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        if (root.isExternal()) {
+            return;
+        }
+        // For each node on the path, the index of the next child to visit.
+        int[] next = new int[8];
+        @SuppressWarnings("unchecked")
+        Node<K, V>[] nodes = (Node<K, V>[]) new Node[8];
+        nodes[0] = root;
+        int depth = 0;
+        while (depth >= 0) {
+            Node<K, V> node = nodes[depth];
+            int i = next[depth];
+            if (i > node.count) {
+                depth--;
+                continue;
+            }
+            if (i > 0) {
+                action.accept(node.keys[i - 1], node.values[i - 1]);
+            }
+            next[depth] = i + 1;
+            Node<K, V> child = node.children[i];
+            if (!child.isExternal()) {
+                depth++;
+                if (depth == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, 2 * depth);
+                    next = Arrays.copyOf(next, 2 * depth);
+                }
+                nodes[depth] = child;
+                next[depth] = 0;
+            }
+        }
+    }
+
+    /**
+     * Verify the invariants for the 2-4 tree.
+     * @throws IllegalStateException If an invariant is violated.
+     */
+    public void verifyInvariants() {
+        root.verifyInvariants(null, null);
+        int[] count = new int[1];
+        forEach((key, value) -> count[0]++);
+        if (count[0] != size) {
+            throw new IllegalStateException("Size " + size + " but " + count[0] + " keys");
+        }
+    }
+
+    @Override
+    public String toString() {
+        return root.toString();
+    }
+
+    public static void main(String[] args) {
+        TwoFourMap<String, Integer> counts = new TwoFourMap<>();
+        try {
+            for (String word : "the quick brown fox jumps over the lazy dog the end".split(" ")) {
+                counts.merge(word, 1, Integer::sum);
+                counts.verifyInvariants();
+            }
+            System.out.println(counts);
+            counts.compute("the", (word, count) -> count == null ? 1 : count - 1);
+            counts.compute("fox", (word, count) -> null);
+            counts.computeIfAbsent("cat", String::length);
+            counts.verifyInvariants();
+            counts.forEach((word, count) -> System.out.print(word + "=" + count + " "));
+            System.out.println();
+
+            // Functions that use the map without adding or removing keys.
+            TwoFourMap<Integer, Integer> map = new TwoFourMap<>();
+            for (int i = 0; i < 100; i += 2) {
+                map.put(i, i);
+            }
+            map.compute(4, (key, value) -> {
+                map.put(90, -1);
+                return 1000;
+            });
+            map.computeIfAbsent(3, key -> {
+                map.remove(91);
+                return 33;
+            });
+            map.merge(6, 1, (old, value) -> old + map.get(8));
+            map.verifyInvariants();
+            System.out.println(map.get(4) + " " + map.get(3) + " " + map.get(6) + " " + map.get(90));
+            try {
+                map.compute(10, (key, value) -> {
+                    map.put(11, 11);
+                    return 0;
+                });
+            } catch (ConcurrentModificationException ex) {
+                System.out.println("ConcurrentModificationException");
+            }
+            map.verifyInvariants();
+        } catch (Exception ex) {
+            ex.printStackTrace(System.err);
+        }
+        // expected: brown=1 cat=3 dog=1 end=1 jumps=1 lazy=1 over=1 quick=1 the=2
+        // 1000 33 14 -1
+        // ConcurrentModificationException
+    }
+}
@@ -1,120 +1,335 @@
-import java.util.LinkedList;
+package alg;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32C;
 
-public class TwoFourTree<K extends Comparable<K>> {
+public class TwoFourTree<K extends Comparable<K>> implements Iterable<K> {
 
-    private static class Pair<K extends Comparable<K>> {
-        private K value;
-        private Node<K> child;
+    private static class Node<K extends Comparable<K>> {
+        /**
+         * The external node. External nodes hold no values or children, so every external
+         * position in every tree refers to this single immutable instance.
+         */
+        private static final Node<?> EXTERNAL = new Node<>(true);
 
-        Pair(K value, Node<K> child) {
-            this.value = value;
-            this.child = child;
-        }
-    }
+        /**
+         * Values in the node, in ascending order. Only the first count entries are used. The array
+         * has room for one value more than the maximum, so that a node can temporarily overflow
+         * before it is split.
+         */
+        private final K[] values;
+
+        /**
+         * For each value, its prefix from the normalizer, or null if the tree does not store prefixes.
+         */
+        private final long[] prefixes;
+
+        /**
+         * Normalizes values to prefixes, or null if the tree does not store prefixes.
+         */
+        private final KeyNormalizer<? super K> normalizer;
+
+        /**
+         * Children of the node. The child at index i should be followed for values smaller than
+         * values[i], the child at index count for values larger than the largest value in the node.
+         */
+        private final Node<K>[] children;
 
-    private static class Node<K extends Comparable<K>> {
         /**
-         * Pairs of elements in the node, with the corresponding child. The child
-         * should be followed for values smaller than the given element. If element is null,
-         * it should be followed for values larger than the largest element in the node.
+         * Number of values in the node.
          */
-        private final List<Pair<K>> pairs;
+        private int count = 0;
 
         /**
-         * The parent node of this node.
+         * Number of values in the subtree rooted at this node. Only maintained if the tree counts values.
          */
-        private Node<K> parent = null;
+        private int size = 0;
 
         /**
          * Whether this node is an external node.
          */
-        private boolean isExternal = true;
+        private final boolean isExternal;
 
         /**
-         * Create a new external node.
+         * Create the external node.
          */
-        Node() {
-            pairs = new LinkedList<>();
-            pairs.add(new Pair<>(null, null));
+        private Node(boolean isExternal) {
+            values = null;
+            prefixes = null;
+            normalizer = null;
+            children = null;
+            this.isExternal = isExternal;
         }
 
         /**
-         * Create a new 2-node.
+         * Create a new internal node without any values.
+         * @param order The maximum number of children of the node.
+         * @param normalizer Normalizes values to prefixes, or null to not store prefixes.
          */
-        Node(K value1, Node<K> child1, Node<K> child2) {
-            pairs = new LinkedList<>();
-            pairs.add(new Pair<>(value1, child1));
-            pairs.add(new Pair<>(null, child2));
-            child1.parent = this;
-            child2.parent = this;
+        @SuppressWarnings("unchecked")
+        Node(int order, KeyNormalizer<? super K> normalizer) {
+            values = (K[]) new Comparable[order];
+            prefixes = normalizer == null ? null : new long[order];
+            this.normalizer = normalizer;
+            children = (Node<K>[]) new Node[order + 1];
             isExternal = false;
         }
 
         /**
-         * Create a new 3-node.
+         * Get the external node.
          */
-        Node(K value1, K value2, Node<K> child1, Node<K> child2, Node<K> child3) {
-            pairs = new LinkedList<>();
-            pairs.add(new Pair<>(value1, child1));
-            pairs.add(new Pair<>(value2, child2));
-            pairs.add(new Pair<>(null, child3));
-            child1.parent = this;
-            child2.parent = this;
-            child3.parent = this;
-            isExternal = false;
+        @SuppressWarnings("unchecked")
+        static <K extends Comparable<K>> Node<K> external() {
+            return (Node<K>) EXTERNAL;
         }
 
         /**
-         * Create a new 4-node.
+         * Create a new node with a single value.
+         * @param order The maximum number of children of the node.
+         * @param normalizer Normalizes values to prefixes, or null to not store prefixes.
          */
-        Node(K value1, K value2, K value3, Node<K> child1, Node<K> child2, Node<K> child3, Node<K> child4) {
-            pairs = new LinkedList<>();
-            pairs.add(new Pair<>(value1, child1));
-            pairs.add(new Pair<>(value2, child2));
-            pairs.add(new Pair<>(value3, child3));
-            pairs.add(new Pair<>(null, child4));
-            child1.parent = this;
-            child2.parent = this;
-            child3.parent = this;
-            child4.parent = this;
-            isExternal = false;
+        Node(int order, KeyNormalizer<? super K> normalizer, K value1, Node<K> child1, Node<K> child2) {
+            this(order, normalizer);
+            setValue(0, value1);
+            children[0] = child1;
+            children[1] = child2;
+            count = 1;
         }
 
         /**
-         * Insert a value and a corresponding child node (for children smaller than the value) in this node.
+         * Insert a value and the child node to the right of it (for values larger than the value) in this node.
+         * @param i Index of the value, which must be the index of the child that is split by it.
          * @param value Value to insert.
-         * @param child Child node to insert.
-         * @return Index of inserted value.
+         * @param right Child node to insert.
          */
-        int insert(K value, Node<K> child) {
-            Pair<K> pair = new Pair<>(value, child);
-            int i = 0;
-            if (pair.child != null) {
-                pair.child.parent = this;
-            }
-            if (isExternal) {
-                replaceChild(pairs.size() - 1, new Node<>());
+        void insert(int i, K value, Node<K> right) {
+            copyValues(this, i, this, i + 1, count - i);
+            System.arraycopy(children, i + 1, children, i + 2, count - i);
+            setValue(i, value);
+            children[i + 1] = right;
+            count++;
+        }
+
+        /**
+         * Remove a value and the child node to the right of it from this node.
+         * @param i Index of the value.
+         * @return The removed value.
+         */
+        K remove(int i) {
+            K value = values[i];
+            copyValues(this, i + 1, this, i, count - i - 1);
+            System.arraycopy(children, i + 2, children, i + 1, count - i - 1);
+            count--;
+            values[count] = null;
+            children[count + 1] = null;
+            return value;
+        }
+
+        /**
+         * Store a value, and its prefix if the node stores prefixes.
+         * @param i Index of the value.
+         * @param value The value.
+         */
+        void setValue(int i, K value) {
+            values[i] = value;
+            if (prefixes != null) {
+                prefixes[i] = normalizer.prefix(value);
             }
-            isExternal = false;
-            for (Pair<K> p : pairs) {
-                if (p.value == null || p.value.compareTo(pair.value) >= 0) {
-                    pairs.add(i, pair);
-                    return i;
+        }
+
+        /**
+         * Recompute the prefixes of all values, after they were stored without them.
+         */
+        void updatePrefixes() {
+            if (prefixes != null) {
+                for (int i = 0; i < count; i++) {
+                    prefixes[i] = normalizer.prefix(values[i]);
                 }
-                i++;
             }
-            return -1;
         }
 
         /**
-         * Set the child node for a given index.
-         * @param i Index of the child.
-         * @param child New child node.
+         * Copy values and their prefixes, like System.arraycopy.
+         */
+        static <K extends Comparable<K>> void copyValues(Node<K> source, int sourceIndex, Node<K> target,
+                                                          int targetIndex, int length) {
+            System.arraycopy(source.values, sourceIndex, target.values, targetIndex, length);
+            if (source.prefixes != null) {
+                System.arraycopy(source.prefixes, sourceIndex, target.prefixes, targetIndex, length);
+            }
+        }
+
+        /**
+         * Recompute the number of values in the subtree from the children.
+         */
+        void updateSize() {
+            int s = count;
+            for (int i = 0; i <= count; i++) {
+                s += children[i].size;
+            }
+            size = s;
+        }
+
+        /**
+         * Move one value from the left sibling of a child through this node into the child.
+         * @param i Index of the child that receives the value.
+         */
+        void transferFromLeft(int i) {
+            Node<K> left = children[i - 1];
+            Node<K> child = children[i];
+            copyValues(child, 0, child, 1, child.count);
+            System.arraycopy(child.children, 0, child.children, 1, child.count + 1);
+            copyValues(this, i - 1, child, 0, 1);
+            child.children[0] = left.children[left.count];
+            child.count++;
+            copyValues(left, left.count - 1, this, i - 1, 1);
+            left.values[left.count - 1] = null;
+            left.children[left.count] = null;
+            left.count--;
+        }
+
+        /**
+         * Move one value from the right sibling of a child through this node into the child.
+         * @param i Index of the child that receives the value.
+         */
+        void transferFromRight(int i) {
+            Node<K> child = children[i];
+            Node<K> right = children[i + 1];
+            copyValues(this, i, child, child.count, 1);
+            child.children[child.count + 1] = right.children[0];
+            child.count++;
+            copyValues(right, 0, this, i, 1);
+            copyValues(right, 1, right, 0, right.count - 1);
+            System.arraycopy(right.children, 1, right.children, 0, right.count);
+            right.count--;
+            right.values[right.count] = null;
+            right.children[right.count + 1] = null;
+        }
+
+        /**
+         * Merge two neighbouring children, together with the value between them, into the left one.
+         * @param i Index of the value between the children.
+         */
+        void fuse(int i) {
+            children[i].append(values[i], children[i + 1]);
+            remove(i);
+        }
+
+        /**
+         * Append a separator value and all values and children of the next node at the same level
+         * to this node. The combined node must not have more than one value too many.
+         * @param separator A value between the values of this node and those of the next node.
+         * @param right The next node.
+         */
+        void append(K separator, Node<K> right) {
+            setValue(count, separator);
+            copyValues(right, 0, this, count + 1, right.count);
+            System.arraycopy(right.children, 0, children, count + 1, right.count + 1);
+            count += right.count + 1;
+        }
+
+        /**
+         * Divide the values and children of this node, a separator value, and the next node at the
+         * same level evenly between the two nodes. If there are more values than fit in a single
+         * node, both nodes end up with at least the minimum number of values.
+         * @param separator A value between the values of this node and those of the next node.
+         * @param right The next node.
+         * @return The new separator between the two nodes.
+         */
+        @SuppressWarnings("unchecked")
+        K balance(K separator, Node<K> right) {
+            int total = count + 1 + right.count;
+            K[] allValues = (K[]) new Comparable[total];
+            Node<K>[] allChildren = (Node<K>[]) new Node[total + 1];
+            System.arraycopy(values, 0, allValues, 0, count);
+            allValues[count] = separator;
+            System.arraycopy(right.values, 0, allValues, count + 1, right.count);
+            System.arraycopy(children, 0, allChildren, 0, count + 1);
+            System.arraycopy(right.children, 0, allChildren, count + 1, right.count + 1);
+
+            int middle = total / 2;
+            Arrays.fill(values, null);
+            Arrays.fill(children, null);
+            System.arraycopy(allValues, 0, values, 0, middle);
+            System.arraycopy(allChildren, 0, children, 0, middle + 1);
+            count = middle;
+            Arrays.fill(right.values, null);
+            Arrays.fill(right.children, null);
+            System.arraycopy(allValues, middle + 1, right.values, 0, total - middle - 1);
+            System.arraycopy(allChildren, middle + 1, right.children, 0, total - middle);
+            right.count = total - middle - 1;
+            updatePrefixes();
+            right.updatePrefixes();
+            return allValues[middle];
+        }
+
+        /**
+         * Move a range of the values of this node, and the children around them, to a new node.
+         * @param from Index of the first value to move.
+         * @param to Index after the last value to move.
+         * @return The new node.
+         */
+        Node<K> copyRange(int from, int to) {
+            Node<K> node = new Node<K>(values.length, normalizer);
+            copyValues(this, from, node, 0, to - from);
+            System.arraycopy(children, from, node.children, 0, to - from + 1);
+            node.count = to - from;
+            return node;
+        }
+
+        /**
+         * Remove all values from the given index on from this node, keeping the child to the left of it.
+         * @param to Index of the first value to remove.
+         */
+        void truncate(int to) {
+            Arrays.fill(values, to, count, null);
+            Arrays.fill(children, to + 1, count + 1, null);
+            count = to;
+        }
+
+        /**
+         * Move the values and children to the right of the given index to a new node. The value
+         * at the index itself is removed from this node as well, and should be moved to the parent.
+         * @param middle Index of the value to split at.
+         * @return The new node holding the larger values.
          */
-        void replaceChild(int i, Node<K> child) {
-            pairs.get(i).child = child;
-            child.parent = this;
+        Node<K> split(int middle) {
+            Node<K> right = new Node<K>(values.length, normalizer);
+            int rightCount = count - middle - 1;
+            copyValues(this, middle + 1, right, 0, rightCount);
+            System.arraycopy(children, middle + 1, right.children, 0, rightCount + 1);
+            right.count = rightCount;
+            Arrays.fill(values, middle, count, null);
+            Arrays.fill(children, middle + 1, count + 1, null);
+            count = middle;
+            return right;
         }
 
         /**
@@ -123,32 +338,59 @@ public class TwoFourTree<K extends Comparable<K>> {
          * @return Whether the value exists.
          */
         boolean contains(K value) {
-            for (Pair<K> pair : pairs) {
-                if (pair.value != null && pair.value.compareTo(value) == 0) {
-                    return true;
-                }
-            }
-            return false;
+            return indexOf(value) >= 0;
         }
 
-        K getValue(int index) {
-            return pairs.get(index).value;
+        /**
+         * Find the given value in this node, using binary search.
+         * @param value Value to look for.
+         * @return Index of the value, or (-(index of the child to follow) - 1) if it is not in this node.
+         */
+        int indexOf(K value) {
+            if (prefixes != null) {
+                return indexOf(value, normalizer.prefix(value));
+            }
+            int lo = 0;
+            int hi = count - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = values[mid].compareTo(value);
+                if (cmp < 0) {
+                    lo = mid + 1;
+                } else if (cmp > 0) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -lo - 1;
         }
 
         /**
-         * Replace a value in this node with an equivalent version.
-         * @param value The new value.
-         * @return The old version that was previously stored in the node.
+         * Find the given value in this node, comparing prefixes first if the node stores them.
+         * @param value Value to look for.
+         * @param prefix The prefix of the value, which is ignored if the node stores no prefixes.
+         * @return Index of the value, or (-(index of the child to follow) - 1) if it is not in this node.
          */
-        K replaceValue(K value) {
-            for (Pair<K> pair : pairs) {
-                if (pair.value.compareTo(value) == 0) {
-                    K val = pair.value;
-                    pair.value = value;
-                    return val;
+        int indexOf(K value, long prefix) {
+            if (prefixes == null) {
+                return indexOf(value);
+            }
+            int lo = 0;
+            int hi = count - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                long midPrefix = prefixes[mid];
+                int cmp = midPrefix < prefix ? -1 : midPrefix > prefix ? 1 : values[mid].compareTo(value);
+                if (cmp < 0) {
+                    lo = mid + 1;
+                } else if (cmp > 0) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
                 }
             }
-            return null;
+            return -lo - 1;
         }
 
         /**
@@ -157,238 +399,2660 @@ public class TwoFourTree<K extends Comparable<K>> {
          * @return The child node to follow.
          */
         Node<K> findChildByValue(K value) {
-            for (Pair<K> pair : pairs) {
-                if (pair.value == null || pair.value.compareTo(value) > 0) {
-                    return pair.child;
+            int index = indexOf(value);
+            return children[index >= 0 ? index + 1 : -index - 1];
+        }
+
+        public boolean isExternal() {
+            return isExternal;
+        }
+
+    }
+
+    /**
+     * In-order iterator over the values in a range of the tree. The path from the root to the next
+     * value is kept in two arrays, so stepping to the next value does not allocate.
+     */
+    private static class ValueIterator<K extends Comparable<K>> implements Iterator<K> {
+        /**
+         * Nodes on the path to the next value, from the root down.
+         */
+        private final Node<K>[] nodes;
+
+        /**
+         * For each node on the path, the index of the next value to return from it.
+         */
+        private final int[] indices;
+
+        /**
+         * Number of nodes on the path.
+         */
+        private int depth = 0;
+
+        /**
+         * Upper bound of the range, or null if the range is not bounded.
+         */
+        private final K hi;
+
+        /**
+         * Whether the upper bound is part of the range.
+         */
+        private final boolean hiInclusive;
+
+        /**
+         * Create an iterator over the values between two bounds.
+         * @param root The root of the tree.
+         * @param lo Lower bound of the range, or null if the range is not bounded.
+         * @param loInclusive Whether the lower bound is part of the range.
+         * @param hi Upper bound of the range, or null if the range is not bounded.
+         * @param hiInclusive Whether the upper bound is part of the range.
+         */
+        @SuppressWarnings("unchecked")
+        ValueIterator(Node<K> root, K lo, boolean loInclusive, K hi, boolean hiInclusive) {
+            int height = 0;
+            for (Node<K> node = root; !node.isExternal(); node = node.children[0]) {
+                height++;
+            }
+            nodes = (Node<K>[]) new Node[height];
+            indices = new int[height];
+            this.hi = hi;
+            this.hiInclusive = hiInclusive;
+
+            // Descend to the first value in the range, remembering the next value in each node.
+            Node<K> node = root;
+            while (!node.isExternal()) {
+                int index = lo == null ? -1 : node.indexOf(lo);
+                if (index >= 0 && loInclusive) {
+                    push(node, index);
+                    return;
                 }
+                int child = index >= 0 ? index + 1 : -index - 1;
+                push(node, child);
+                node = node.children[child];
             }
-            return null;
         }
 
-        Node<K> getChild(int index) {
-            return pairs.get(index).child;
+        private void push(Node<K> node, int index) {
+            nodes[depth] = node;
+            indices[depth] = index;
+            depth++;
         }
 
-        int size() {
-            return pairs.size();
+        @Override
+        public boolean hasNext() {
+            while (depth > 0 && indices[depth - 1] >= nodes[depth - 1].count) {
+                depth--;
+            }
+            if (depth == 0) {
+                return false;
+            }
+            if (hi != null) {
+                int cmp = nodes[depth - 1].values[indices[depth - 1]].compareTo(hi);
+                if (cmp > 0 || (cmp == 0 && !hiInclusive)) {
+                    depth = 0;
+                    return false;
+                }
+            }
+            return true;
         }
 
         @Override
-        public String toString() {
-            StringBuilder sb = new StringBuilder();
-            sb.append('[');
-            for (Pair<K> p : pairs) {
-                if (p.child != null) {
-                    sb.append(p.child);
-                }
-                if (p.value != null) {
-                    sb.append(' ');
-                    sb.append(p.value);
-                    sb.append(' ');
-                }
+        public K next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Node<K> node = nodes[depth - 1];
+            int index = indices[depth - 1]++;
+            for (Node<K> child = node.children[index + 1]; !child.isExternal(); child = child.children[0]) {
+                push(child, 0);
             }
-            sb.append(']');
-            return sb.toString();
+            return node.values[index];
         }
+    }
+
+    /**
+     * Spliterator over a part of the tree. The part is a range of positions in a single node, where
+     * position 2i is the subtree children[i] and position 2i + 1 is values[i]. Splitting divides
+     * the positions between two spliterators, and moves down to the child if only one child is left.
+     * Once traversal starts, the part is turned into a range of values and handed to a ValueIterator.
+     */
+    private static class ValueSpliterator<K extends Comparable<K>> implements Spliterator<K> {
+        private Node<K> node;
+        private int from;
+        private int to;
+
+        /**
+         * Bounds of the values below the node, inherited from the ancestors. A bound is null if the
+         * node is on the left or right edge of the tree.
+         */
+        private K lo;
+        private boolean loInclusive;
+        private K hi;
+        private boolean hiInclusive;
+
+        private long estimate;
 
         /**
-         * Verify the invariants for this node in the 2-4 tree, and return the height of the node.
-         * @param min The smallest legal value in this node.
-         * @param max The largest legal value in this node.
-         * @return Height, or -1 if the node violates any invariants.
+         * Iterator over the values, once traversal has started.
          */
-        private int verifyInvariants(K min, K max) {
-            if (this.isExternal) {
-                if (this.pairs.size() > 1 || this.pairs.get(0).value != null || this.pairs.get(0).child != null) {
-                    System.out.println("External node with childen");
-                    return -1;
+        private ValueIterator<K> iterator = null;
+
+        ValueSpliterator(Node<K> node, int from, int to, K lo, boolean loInclusive, K hi, boolean hiInclusive,
+                         long estimate) {
+            this.node = node;
+            this.from = from;
+            this.to = to;
+            this.lo = lo;
+            this.loInclusive = loInclusive;
+            this.hi = hi;
+            this.hiInclusive = hiInclusive;
+            this.estimate = estimate;
+        }
+
+        @Override
+        public Spliterator<K> trySplit() {
+            if (iterator != null) {
+                return null;
+            }
+            while (!node.isExternal() && to - from == 1 && from % 2 == 0 && !node.children[from / 2].isExternal()) {
+                int child = from / 2;
+                if (child > 0) {
+                    lo = node.values[child - 1];
+                    loInclusive = false;
                 }
-                return 0;
-            } else {
-                if (this.pairs.size() < 2 || this.pairs.size() > 4) {
-                    System.out.println("2-4 invariant violated ("+this.pairs.size()+")");
-                    return -1;
-                }
-                int i = 0;
-                K last = null;
-                int lastDepth = -1;
-                for (Pair<K> pair : this.pairs) {
-                    if (pair.child == null) {
-                        System.out.println("Internal node with null child");
-                        return -1;
-                    }
-                    if (pair.child.parent != this) {
-                        System.out.println("Incorrect parent pointer");
-                        return -1;
-                    }
-                    if (pair.value != null && i == this.pairs.size() - 1) {
-                        System.out.println("Last value is not null");
-                        return -1;
-                    }
-                    if (pair.value == null && i < this.pairs.size() - 1) {
-                        System.out.println("Non-last value is null");
-                        return -1;
-                    }
-                    if (pair.value != null && min != null && min.compareTo(pair.value) > 0) {
-                        System.out.println("Value " + pair.value + " too small");
-                        return -1;
-                    }
-                    if (pair.value != null && max != null && max.compareTo(pair.value) < 0) {
-                        System.out.println("Value " + pair.value + " too large");
-                        return -1;
-                    }
-                    if (pair.value != null && last != null && pair.value.compareTo(last) <= 0) {
-                        System.out.println("Incorrect order between "+last+" and "+pair.value);
-                        return -1;
-                    }
-                    int depth = pair.child.verifyInvariants(last == null ? min : last, pair.value == null ? max : pair.value);
-                    if (depth == -1) {
-                        System.out.println("Invariant violated in child node");
-                        return -1;
-                    }
-                    if (lastDepth != -1 && depth != lastDepth) {
-                        System.out.println("Depth not equal ("+depth+" and "+lastDepth+")");
-                        return -1;
-                    }
-                    last = pair.value;
-                    lastDepth = depth;
-                    i++;
+                if (child < node.count) {
+                    hi = node.values[child];
+                    hiInclusive = false;
                 }
-                return lastDepth + 1;
+                node = node.children[child];
+                from = 0;
+                to = 2 * node.count + 1;
             }
+            if (to - from < 2) {
+                return null;
+            }
+            int middle = (from + to) / 2;
+            estimate /= 2;
+            ValueSpliterator<K> prefix = new ValueSpliterator<>(node, from, middle, lo, loInclusive, hi, hiInclusive, estimate);
+            from = middle;
+            return prefix;
         }
 
-        public boolean isExternal() {
-            return isExternal;
+        @Override
+        public boolean tryAdvance(Consumer<? super K> action) {
+            if (iterator == null) {
+                start();
+            }
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            action.accept(iterator.next());
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super K> action) {
+            if (iterator == null) {
+                start();
+            }
+            iterator.forEachRemaining(action);
+        }
+
+        /**
+         * Turn the range of positions into a range of values, and start iterating over it.
+         */
+        private void start() {
+            K start = lo;
+            boolean startInclusive = loInclusive;
+            if (from % 2 == 1) {
+                start = node.values[from / 2];
+                startInclusive = true;
+            } else if (from > 0) {
+                start = node.values[from / 2 - 1];
+                startInclusive = false;
+            }
+            K end = hi;
+            boolean endInclusive = hiInclusive;
+            if (to % 2 == 0) {
+                end = node.values[to / 2 - 1];
+                endInclusive = true;
+            } else if (to < 2 * node.count + 1) {
+                end = node.values[to / 2];
+                endInclusive = false;
+            }
+            iterator = new ValueIterator<>(node, start, startInclusive, end, endInclusive);
+        }
+
+        @Override
+        public long estimateSize() {
+            return estimate;
+        }
+
+        @Override
+        public int characteristics() {
+            return ORDERED | SORTED | DISTINCT | NONNULL;
         }
 
+        @Override
+        public Comparator<? super K> getComparator() {
+            return null;
+        }
     }
 
-    private Node<K> root = new Node<>();
+    private Node<K> root = Node.external();
 
     /**
-     * Add a value to the tree.
-     * @param value The value to add to the tree.
-     * @return The old value that was stored in the node, if it was already present, or null.
+     * Number of values in the tree.
      */
-    public K add(K value) {
-        Node<K> currentNode = root;
-    while (!currentNode.isExternal()) {
-        if (currentNode.contains(value)) {
-            return currentNode.replaceValue(value);
-        }
-        currentNode = currentNode.findChildByValue(value);
-    }
+    private int size = 0;
 
-    currentNode.insert(value, null);
+    /**
+     * Whether the nodes keep track of the number of values in their subtree, which is needed for
+     * rank and select.
+     */
+    private final boolean countValues;
 
-    while (currentNode.size() > 4) {
-        int middle = (currentNode.size() - 1) / 2;
-        K middleValue = currentNode.getValue(middle);
-        Node<K> left = new Node<>();
-        Node<K> right = new Node<>();
+    /**
+     * Maximum number of children of a node. A 2-4 tree has order 4; with a higher order the tree
+     * is a B-tree with wider nodes, which is lower and makes fewer cache misses per lookup.
+     */
+    private final int order;
 
-        for (int i = 0; i < middle; i++) {
-            left.insert(currentNode.getValue(i), currentNode.getChild(i));
-        }
-        left.insert(null, currentNode.getChild(middle));
+    /**
+     * Maximum number of values in a node.
+     */
+    private final int maxValues;
 
-        for (int i = middle + 1; i < currentNode.size() - 1; i++) {
-            right.insert(currentNode.getValue(i), currentNode.getChild(i));
-        }
-        right.insert(null, currentNode.getChild(currentNode.size() - 1));
+    /**
+     * Minimum number of values in a node other than the root.
+     */
+    private final int minValues;
 
-        if (currentNode.parent == null) {
-            root = new Node<>(middleValue, left, right);
-            break;
-        } else {
-            currentNode = currentNode.parent;
-            int indexOfMiddleValue = currentNode.insert(middleValue, left);
-            currentNode.replaceChild(indexOfMiddleValue + 1, right);
+    /**
+     * Maps values to the prefixes that the nodes store next to them, or null if they store no prefixes.
+     */
+    private final KeyNormalizer<? super K> normalizer;
+
+    /**
+     * Create an empty 2-4 tree.
+     */
+    public TwoFourTree() {
+        this(4, false);
+    }
+
+    /**
+     * Create an empty 2-4 tree.
+     * @param countValues Whether to keep track of subtree sizes, to support rank, select and
+     *                    countInRange at a small cost on every insert and removal.
+     */
+    public TwoFourTree(boolean countValues) {
+        this(4, countValues);
+    }
+
+    /**
+     * Create an empty B-tree of a given order.
+     * @param order The maximum number of children of a node, at least 3.
+     */
+    public TwoFourTree(int order) {
+        this(order, false);
+    }
+
+    /**
+     * Create an empty B-tree of a given order.
+     * @param order The maximum number of children of a node, at least 3. Nodes other than the
+     *              root have at least half of that number of children (rounded up).
+     * @param countValues Whether to keep track of subtree sizes.
+     */
+    public TwoFourTree(int order, boolean countValues) {
+        this(order, countValues, null);
+    }
+
+    /**
+     * Create an empty B-tree of a given order, which stores a normalized prefix next to each value.
+     * Searches compare the prefixes first, and only call compareTo on the values if the prefixes are
+     * equal. This saves following the references to the values, and for keys like strings, most
+     * of the cost of compareTo.
+     * @param order The maximum number of children of a node, at least 3.
+     * @param countValues Whether to keep track of subtree sizes.
+     * @param normalizer Maps values to prefixes that are consistent with compareTo, or null to not
+     *                   store prefixes.
+     */
+    public TwoFourTree(int order, boolean countValues, KeyNormalizer<? super K> normalizer) {
+        if (order < 3) {
+            throw new IllegalArgumentException("Order must be at least 3: " + order);
         }
+        this.order = order;
+        this.maxValues = order - 1;
+        this.minValues = (order + 1) / 2 - 1;
+        this.countValues = countValues;
+        this.normalizer = normalizer;
     }
 
-    return null;
+    /**
+     * Strategies for splitting nodes on insertion.
+     */
+    public enum InsertionStrategy {
+        /**
+         * Insert into the lowest internal node, then walk back up the path and split the nodes
+         * that overflow.
+         */
+        BOTTOM_UP,
+
+        /**
+         * Split every full node on the way down, so that the insert finishes in a single pass from
+         * the root to the lowest internal node and never returns to an ancestor. This requires an
+         * even order, so that a full node can be split into two nodes of legal size.
+         */
+        TOP_DOWN
     }
 
     /**
-     * Convert a node to a Red-Black representation.
-     * @param node The node to convert.
-     * @return The Red-Black representation of the node.
+     * How add splits nodes.
      */
-    // private RedBlackTree<K> convertToRedBlackTree(Node<K> node) {
-    //     if (node == null) {
-    //         return null;
-    //     }
+    private InsertionStrategy insertionStrategy = InsertionStrategy.BOTTOM_UP;
 
-    //     if (node.isLeaf()) {
-    //         return new RedBlackTree<K>(node.getKey(), RedBlackTree.Color.BLACK, null, null);
-    //     }
+    /**
+     * Whether add starts from the path of the previous insertion (the finger) instead of from the root.
+     */
+    private boolean fingerInsertion = false;
 
-    //     List<RedBlackTree<K>> children = new LinkedList<>();
-    //     for (Node<K> child : node.getChildren()) {
-    //         children.add(convertToRedBlackTree(child));
-    //     }
+    /**
+     * Nodes on the path of the latest add or remove, from the root down. Nodes do not point to
+     * their parents, so the path is used to walk back up when splitting or fixing underflow.
+     */
+    private Node<K>[] pathNodes;
 
-    //     RedBlackTree<K> root = new RedBlackTree<K>(node.getKey(), RedBlackTree.Color.BLACK, children.get(0), children.get(1));
-    //     if (children.size() > 2) {
-    //         root.right = children.get(2);
-    //     }
-    //     if (children.size() > 3) {
-    //         RedBlackTree<K> rightChild = children.get(3);
-    //         RedBlackTree<K> newRight = new RedBlackTree<K>(rightChild.element, RedBlackTree.Color.RED, rightChild.left, rightChild.right);
-    //         root.right.right = newRight;
-    //         newRight.parent = root.right;
-    //     }
+    /**
+     * For each node on the path, the index of the child that the path continues with.
+     */
+    private int[] pathIndices;
 
-    //     return root;
+    /**
+     * For each node on the finger, the bounds (exclusive) of the values that belong in its subtree,
+     * or null if the subtree is on the left or right edge of the tree.
+     */
+    private K[] fingerLow;
+    private K[] fingerHigh;
 
-    // }
+    /**
+     * Number of nodes on the path that are still valid as a finger for the next insertion.
+     */
+    private int fingerDepth = 0;
 
     /**
-     * Convert this tree to a Red-Black representation.
-     * @return The Red-Black representation of the tree.
+     * Receives measurements of add, remove and contains, or null if they are not measured.
      */
-    // public RedBlackTree<K> convertToRedBlackTree() {
-    //     return convertToRedBlackTree(root);
-    // }
+    private TreeMetrics metrics = null;
 
+    /**
+     * Enable or disable finger insertion. With finger insertion, add remembers the path to the
+     * node where the previous value was inserted, and only climbs as far up that path as needed
+     * for the new value. For sorted or clustered input this makes an insert cost amortized O(1)
+     * instead of O(log n).
+     * @param enabled Whether to use finger insertion.
+     */
+    public void setFingerInsertion(boolean enabled) {
+        fingerInsertion = enabled;
+        fingerDepth = 0;
+    }
 
     /**
-     * Verify the invariants for the 2-4 tree.
+     * Select how add splits nodes. Finger insertion only applies to bottom-up insertion: a top-down
+     * insert always starts at the root.
+     * @param strategy The insertion strategy.
+     * @throws IllegalArgumentException If the strategy is TOP_DOWN and the order of the tree is odd.
      */
-    public void verifyInvariants() {
-        if (root.verifyInvariants(null, null) == -1) {
-            throw new IllegalStateException();
+    public void setInsertionStrategy(InsertionStrategy strategy) {
+        if (strategy == InsertionStrategy.TOP_DOWN && order % 2 != 0) {
+            throw new IllegalArgumentException("Top-down insertion requires an even order: " + order);
         }
+        insertionStrategy = strategy;
+        fingerDepth = 0;
     }
 
-    @Override
-    public String toString() {
-        return root.toString();
+    /**
+     * Enable or disable metrics. While enabled, add, remove and contains count the comparisons and
+     * node splits they make and report them to the metrics. While disabled, they only pay for a null
+     * check. Comparisons against the finger bounds are not counted.
+     * @param metrics The metrics, or null to disable them.
+     */
+    public void setMetrics(TreeMetrics metrics) {
+        this.metrics = metrics;
     }
 
-    public static void main(String[] args) {
-        TwoFourTree<Integer> tree = new TwoFourTree<>();
-
-        try {
-            for (int n : new int[] {5, 3, 7, 6, 1, 2, 9, 8, 10, 12, 11, 13}) {
-                tree.add(n);
-                tree.verifyInvariants();
-                System.out.println(tree);
-            }
-        } catch (Exception ex) {
-            ex.printStackTrace(System.err);
+    /**
+     * Find the lowest node on the finger whose subtree the value belongs in.
+     * @param value The value that will be inserted.
+     * @return The level of the node on the finger.
+     */
+    private int climbFinger(K value) {
+        if (fingerDepth == 0) {
+            setPath(0, root);
+            fingerLow[0] = null;
+            fingerHigh[0] = null;
+            return 0;
         }
-        // expected: [[[[] 1 [] 2 []] 3 [[] 5 []] 6 [[] 7 [] 8 []]] 9 [[[] 10 [] 11 []] 12 [[] 13 []]]]
+        int level = fingerDepth - 1;
+        while (level > 0 && ((fingerLow[level] != null && fingerLow[level].compareTo(value) >= 0)
+                || (fingerHigh[level] != null && fingerHigh[level].compareTo(value) <= 0))) {
+            level--;
+        }
+        return level;
+    }
 
-        // try {
-        //     RedBlackTree<Integer> rb = tree.convertToRedBlackTree();
-        //     rb.verifyInvariants();
-        //     System.out.println(rb);
-        // } catch (Exception ex) {
-        //     ex.printStackTrace(System.err);
-        // }
-        // expected (example): [[[[] 1 <[] 2 []>] 3 <[[] 5 []] 6 [[] 7 <[] 8 []>]>] 9 [[[] 10 <[] 11 []>] 12 [[] 13 []]]]
+    /**
+     * Store a node on the path, growing the path arrays if needed.
+     * @param level The level of the node.
+     * @param node The node.
+     */
+    @SuppressWarnings("unchecked")
+    private void setPath(int level, Node<K> node) {
+        if (pathNodes == null || level >= pathNodes.length) {
+            int length = Math.max(8, 2 * level);
+            pathNodes = pathNodes == null ? (Node<K>[]) new Node[length] : Arrays.copyOf(pathNodes, length);
+            pathIndices = pathIndices == null ? new int[length] : Arrays.copyOf(pathIndices, length);
+            fingerLow = fingerLow == null ? (K[]) new Comparable[length] : Arrays.copyOf(fingerLow, length);
+            fingerHigh = fingerHigh == null ? (K[]) new Comparable[length] : Arrays.copyOf(fingerHigh, length);
+        }
+        pathNodes[level] = node;
+    }
+
+    /**
+     * Get the prefix of a value, to compare to the prefixes in the nodes.
+     * @param value The value.
+     * @return The prefix, or 0 if the tree stores no prefixes.
+     */
+    private long prefix(K value) {
+        return normalizer == null ? 0 : normalizer.prefix(value);
+    }
+
+    /**
+     * Add a value to the tree.
+     * @param value The value to add to the tree.
+     * @return The old value that was stored in the node, if it was already present, or null.
+     */
+    public K add(K value) {
+        if (root.isExternal()) {
+            root = new Node<>(order, normalizer, value, Node.external(), Node.external());
+            if (countValues) {
+                root.size = 1;
+            }
+            size = 1;
+            fingerDepth = 0;
+            if (metrics != null) {
+                metrics.added(0, 0, false);
+            }
+            return null;
+        }
+        if (insertionStrategy == InsertionStrategy.TOP_DOWN) {
+            return addTopDown(value);
+        }
+
+        // Find the lowest internal node where the value should be inserted, and record the path to it.
+        int level = 0;
+        Node<K> currentNode;
+        if (fingerInsertion) {
+            level = climbFinger(value);
+            currentNode = pathNodes[level];
+        } else {
+            currentNode = root;
+            setPath(0, root);
+        }
+        int i;
+        int comparisons = 0;
+        long prefix = prefix(value);
+        while (true) {
+            int index = currentNode.indexOf(value, prefix);
+            if (metrics != null) {
+                comparisons += searchComparisons(currentNode, index, prefix);
+            }
+            if (index >= 0) {
+                K old = currentNode.values[index];
+                currentNode.values[index] = value;
+                fingerDepth = level + 1;
+                if (metrics != null) {
+                    metrics.added(comparisons, 0, true);
+                }
+                return old;
+            }
+            i = -index - 1;
+            pathIndices[level] = i;
+            Node<K> child = currentNode.children[i];
+            if (child.isExternal()) {
+                break;
+            }
+            setPath(level + 1, child);
+            if (fingerInsertion) {
+                fingerLow[level + 1] = i > 0 ? currentNode.values[i - 1] : fingerLow[level];
+                fingerHigh[level + 1] = i < currentNode.count ? currentNode.values[i] : fingerHigh[level];
+            }
+            currentNode = child;
+            level++;
+        }
+        fingerDepth = level + 1;
+
+        currentNode.insert(i, value, Node.external());
+        size++;
+        if (countValues) {
+            for (int j = 0; j <= level; j++) {
+                pathNodes[j].size++;
+            }
+        }
+
+        int splits = 0;
+        while (currentNode.count > maxValues) {
+            int middle = currentNode.count / 2;
+            K middleValue = currentNode.values[middle];
+            Node<K> right = currentNode.split(middle);
+            splits++;
+            if (countValues) {
+                currentNode.updateSize();
+                right.updateSize();
+            }
+            // Only the nodes above a split node stay valid on the finger.
+            fingerDepth = level;
+
+            if (level == 0) {
+                root = new Node<>(order, normalizer, middleValue, currentNode, right);
+                if (countValues) {
+                    root.updateSize();
+                }
+                break;
+            } else {
+                level--;
+                currentNode = pathNodes[level];
+                currentNode.insert(pathIndices[level], middleValue, right);
+            }
+        }
+
+        if (metrics != null) {
+            metrics.added(comparisons, splits, false);
+        }
+        return null;
+    }
+
+    /**
+     * Add a value to a non-empty tree in a single pass from the root down, splitting full nodes on
+     * the way so that there is always room for a value that moves up. Subtree sizes are incremented
+     * on the way down as well, and only need a second pass if the value turns out to be present.
+     * @param value The value to add to the tree.
+     * @return The old value that was stored in the node, if it was already present, or null.
+     */
+    private K addTopDown(K value) {
+        int comparisons = 0;
+        int splits = 0;
+        if (root.count == maxValues) {
+            Node<K> left = root;
+            int middle = left.count / 2;
+            K middleValue = left.values[middle];
+            Node<K> right = left.split(middle);
+            splits++;
+            root = new Node<>(order, normalizer, middleValue, left, right);
+            if (countValues) {
+                left.updateSize();
+                right.updateSize();
+                root.updateSize();
+            }
+        }
+
+        long prefix = prefix(value);
+        Node<K> currentNode = root;
+        while (true) {
+            if (countValues) {
+                currentNode.size++;
+            }
+            int index = currentNode.indexOf(value, prefix);
+            if (metrics != null) {
+                comparisons += searchComparisons(currentNode, index, prefix);
+            }
+            if (index >= 0) {
+                K old = currentNode.values[index];
+                currentNode.values[index] = value;
+                if (countValues) {
+                    comparisons += undoSizeIncrements(value);
+                }
+                if (metrics != null) {
+                    metrics.added(comparisons, splits, true);
+                }
+                return old;
+            }
+            int i = -index - 1;
+            Node<K> child = currentNode.children[i];
+            if (child.isExternal()) {
+                currentNode.insert(i, value, Node.external());
+                size++;
+                if (metrics != null) {
+                    metrics.added(comparisons, splits, false);
+                }
+                return null;
+            }
+            if (child.count == maxValues) {
+                int middle = child.count / 2;
+                K middleValue = child.values[middle];
+                Node<K> right = child.split(middle);
+                splits++;
+                comparisons++;
+                currentNode.insert(i, middleValue, right);
+                if (countValues) {
+                    child.updateSize();
+                    right.updateSize();
+                }
+                int cmp = value.compareTo(middleValue);
+                if (cmp > 0) {
+                    child = right;
+                } else if (cmp == 0) {
+                    // The value was already present, and has just moved into this node.
+                    currentNode.values[i] = value;
+                    if (countValues) {
+                        comparisons += undoSizeIncrements(value);
+                    }
+                    if (metrics != null) {
+                        metrics.added(comparisons, splits, true);
+                    }
+                    return middleValue;
+                }
+            }
+            currentNode = child;
+        }
+    }
+
+    /**
+     * Decrement the subtree sizes on the path to a value that is present in the tree, after a
+     * top-down insert incremented them for a value that turned out to be present already.
+     * @param value The value.
+     * @return The number of comparisons made, if metrics are enabled, or 0.
+     */
+    private int undoSizeIncrements(K value) {
+        int comparisons = 0;
+        long prefix = prefix(value);
+        Node<K> node = root;
+        while (true) {
+            node.size--;
+            int index = node.indexOf(value, prefix);
+            if (metrics != null) {
+                comparisons += searchComparisons(node, index, prefix);
+            }
+            if (index >= 0) {
+                return comparisons;
+            }
+            node = node.children[-index - 1];
+        }
+    }
+
+    /**
+     * Batches at least this many times larger than the tree are built into a tree of their own and
+     * merged with union; smaller batches are added by a sweep with the finger, which is faster
+     * unless there are hardly any existing nodes to reuse.
+     */
+    private static final int BULK_RATIO = 16;
+
+    /**
+     * Add a batch of values. The batch is sorted first, and then merged into the tree from left to
+     * right. The values are inserted one by one, but each insert starts from the path of the previous
+     * one, so it only climbs as far as needed and splits stay amortized O(1). A batch that is much
+     * larger than the tree is instead built into a tree bottom-up and joined with this tree, so that
+     * its nodes are filled in bulk; values added that way are not reported to the metrics. Either way
+     * the result is the same as adding the values one by one in the order of the collection: of
+     * equal values, the one that comes last is kept.
+     * @param values The values to add.
+     * @return The number of values that were not present yet.
+     */
+    public int addAll(Collection<? extends K> values) {
+        @SuppressWarnings("unchecked")
+        K[] batch = (K[]) values.toArray(new Comparable[0]);
+        // The sort is stable, so of equal values the last one added stays last.
+        Arrays.sort(batch);
+        int oldSize = size;
+        if ((long) size * BULK_RATIO <= batch.length) {
+            addBulk(batch);
+        } else {
+            addSweep(batch);
+        }
+        return size - oldSize;
+    }
+
+    /**
+     * Add sorted values one by one, with bottom-up finger insertion.
+     * @param batch The values, in ascending order.
+     */
+    private void addSweep(K[] batch) {
+        boolean oldFingerInsertion = fingerInsertion;
+        InsertionStrategy oldStrategy = insertionStrategy;
+        fingerInsertion = true;
+        insertionStrategy = InsertionStrategy.BOTTOM_UP;
+        fingerDepth = 0;
+        try {
+            for (K value : batch) {
+                add(value);
+            }
+        } finally {
+            fingerInsertion = oldFingerInsertion;
+            insertionStrategy = oldStrategy;
+            fingerDepth = 0;
+        }
+    }
+
+    /**
+     * Build a tree from sorted values, and merge it with this tree.
+     * @param batch The values, in ascending order.
+     */
+    private void addBulk(K[] batch) {
+        // Of each run of equal values, keep the last.
+        int distinct = 0;
+        for (int i = 0; i < batch.length; i++) {
+            if (i + 1 == batch.length || batch[i].compareTo(batch[i + 1]) != 0) {
+                batch[distinct++] = batch[i];
+            }
+        }
+        TwoFourTree<K> added = fromSorted(new TwoFourTree<K>(order, countValues, normalizer),
+                Arrays.copyOf(batch, distinct), (minValues + maxValues + 1) / 2);
+        // Union keeps the values of the tree it is called on, and add replaces existing values, so
+        // merge this tree into the new one and take over the result.
+        added.union(this);
+        root = added.root;
+        size = added.size;
+        fingerDepth = 0;
+    }
+
+    /**
+     * Remove a value from the tree.
+     * @param value The value to remove.
+     * @return The value that was stored in the tree, or null if it was not present.
+     */
+    public K remove(K value) {
+        if (root.isExternal()) {
+            return null;
+        }
+        // The path is overwritten below, and nodes on it may be fused.
+        fingerDepth = 0;
+        int level = 0;
+        Node<K> currentNode = root;
+        setPath(0, root);
+        int index;
+        int comparisons = 0;
+        long prefix = prefix(value);
+        while (true) {
+            index = currentNode.indexOf(value, prefix);
+            if (metrics != null) {
+                comparisons += searchComparisons(currentNode, index, prefix);
+            }
+            if (index >= 0) {
+                break;
+            }
+            pathIndices[level] = -index - 1;
+            currentNode = currentNode.children[-index - 1];
+            if (currentNode.isExternal()) {
+                if (metrics != null) {
+                    metrics.removed(comparisons, false);
+                }
+                return null;
+            }
+            setPath(++level, currentNode);
+        }
+        K old = currentNode.values[index];
+
+        // Values can only be removed from the lowest internal nodes, so swap with the successor.
+        if (!currentNode.children[0].isExternal()) {
+            Node<K> successor = currentNode.children[index + 1];
+            pathIndices[level] = index + 1;
+            setPath(++level, successor);
+            while (!successor.children[0].isExternal()) {
+                pathIndices[level] = 0;
+                successor = successor.children[0];
+                setPath(++level, successor);
+            }
+            Node.copyValues(successor, 0, currentNode, index, 1);
+            currentNode = successor;
+            index = 0;
+        }
+        currentNode.remove(index);
+        size--;
+        if (countValues) {
+            for (int j = 0; j <= level; j++) {
+                pathNodes[j].size--;
+            }
+        }
+
+        // Fix underflow by taking a value from a sibling, or else by merging with a sibling.
+        while (currentNode.count < minValues) {
+            if (level == 0) {
+                if (currentNode.count == 0) {
+                    root = currentNode.children[0];
+                }
+                break;
+            }
+            Node<K> parent = pathNodes[--level];
+            int i = pathIndices[level];
+            if (i > 0 && parent.children[i - 1].count > minValues) {
+                parent.transferFromLeft(i);
+                if (countValues) {
+                    parent.children[i - 1].updateSize();
+                    currentNode.updateSize();
+                }
+                break;
+            } else if (i < parent.count && parent.children[i + 1].count > minValues) {
+                parent.transferFromRight(i);
+                if (countValues) {
+                    currentNode.updateSize();
+                    parent.children[i + 1].updateSize();
+                }
+                break;
+            } else {
+                int left = i > 0 ? i - 1 : i;
+                parent.fuse(left);
+                if (countValues) {
+                    parent.children[left].updateSize();
+                }
+                currentNode = parent;
+            }
+        }
+
+        if (metrics != null) {
+            metrics.removed(comparisons, true);
+        }
+        return old;
+    }
+
+    /**
+     * Check whether a value is stored in the tree.
+     * @param value The value to look for.
+     * @return Whether the value is present.
+     */
+    public boolean contains(K value) {
+        if (metrics != null) {
+            return containsMeasured(value);
+        }
+        long prefix = prefix(value);
+        Node<K> node = root;
+        while (!node.isExternal()) {
+            int index = node.indexOf(value, prefix);
+            if (index >= 0) {
+                return true;
+            }
+            node = node.children[-index - 1];
+        }
+        return false;
+    }
+
+    /**
+     * Check whether a value is stored in the tree, and report the lookup to the metrics. This is
+     * kept apart from contains so that the uninstrumented loop stays as small as possible.
+     * @param value The value to look for.
+     * @return Whether the value is present.
+     */
+    private boolean containsMeasured(K value) {
+        int comparisons = 0;
+        long prefix = prefix(value);
+        boolean found = false;
+        Node<K> node = root;
+        while (!node.isExternal()) {
+            int index = node.indexOf(value, prefix);
+            comparisons += searchComparisons(node, index, prefix);
+            if (index >= 0) {
+                found = true;
+                break;
+            }
+            node = node.children[-index - 1];
+        }
+        metrics.searched(comparisons, found);
+        return found;
+    }
+
+    /**
+     * Count the calls to compareTo that the binary search in Node.indexOf made, by replaying it from
+     * its result. This keeps the search itself free of counters. If the node stores prefixes, only
+     * the steps where the prefixes were equal called compareTo.
+     * @param node The node.
+     * @param index The result of indexOf.
+     * @param prefix The prefix of the value that was searched, if the node stores prefixes.
+     * @return The number of comparisons.
+     */
+    private static <K extends Comparable<K>> int searchComparisons(Node<K> node, int index, long prefix) {
+        int target = index >= 0 ? index : -index - 1;
+        int lo = 0;
+        int hi = node.count - 1;
+        int comparisons = 0;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            if (node.prefixes == null || node.prefixes[mid] == prefix) {
+                comparisons++;
+            }
+            if (index >= 0 && mid == index) {
+                break;
+            } else if (mid < target) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return comparisons;
+    }
+
+    /**
+     * Get the largest value in the tree that is smaller than or equal to the given value.
+     * @param value The value to compare to.
+     * @return The largest value that is not larger than the given value, or null if there is none.
+     */
+    public K floor(K value) {
+        return below(value, true);
+    }
+
+    /**
+     * Get the largest value in the tree that is strictly smaller than the given value.
+     * @param value The value to compare to.
+     * @return The largest value that is smaller than the given value, or null if there is none.
+     */
+    public K lower(K value) {
+        return below(value, false);
+    }
+
+    /**
+     * Get the smallest value in the tree that is larger than or equal to the given value.
+     * @param value The value to compare to.
+     * @return The smallest value that is not smaller than the given value, or null if there is none.
+     */
+    public K ceiling(K value) {
+        return above(value, true);
+    }
+
+    /**
+     * Get the smallest value in the tree that is strictly larger than the given value.
+     * @param value The value to compare to.
+     * @return The smallest value that is larger than the given value, or null if there is none.
+     */
+    public K higher(K value) {
+        return above(value, false);
+    }
+
+    /**
+     * Find the closest value below the given value in a single descent. Every value to the left of
+     * the path is a candidate, and the last one passed is the closest.
+     * @param value The value to compare to.
+     * @param inclusive Whether an equal value may be returned.
+     * @return The closest value, or null if there is none.
+     */
+    private K below(K value, boolean inclusive) {
+        K result = null;
+        long prefix = prefix(value);
+        Node<K> node = root;
+        while (!node.isExternal()) {
+            int index = node.indexOf(value, prefix);
+            if (index >= 0 && inclusive) {
+                return node.values[index];
+            }
+            int child = index >= 0 ? index : -index - 1;
+            if (child > 0) {
+                result = node.values[child - 1];
+            }
+            node = node.children[child];
+        }
+        return result;
+    }
+
+    /**
+     * Find the closest value above the given value in a single descent. Every value to the right
+     * of the path is a candidate, and the last one passed is the closest.
+     * @param value The value to compare to.
+     * @param inclusive Whether an equal value may be returned.
+     * @return The closest value, or null if there is none.
+     */
+    private K above(K value, boolean inclusive) {
+        K result = null;
+        long prefix = prefix(value);
+        Node<K> node = root;
+        while (!node.isExternal()) {
+            int index = node.indexOf(value, prefix);
+            if (index >= 0 && inclusive) {
+                return node.values[index];
+            }
+            int child = index >= 0 ? index + 1 : -index - 1;
+            if (child < node.count) {
+                result = node.values[child];
+            }
+            node = node.children[child];
+        }
+        return result;
+    }
+
+    /**
+     * Get the smallest value in the tree.
+     * @return The smallest value.
+     * @throws NoSuchElementException If the tree is empty.
+     */
+    public K first() {
+        if (root.isExternal()) {
+            throw new NoSuchElementException();
+        }
+        Node<K> node = root;
+        while (!node.children[0].isExternal()) {
+            node = node.children[0];
+        }
+        return node.values[0];
+    }
+
+    /**
+     * Get the largest value in the tree.
+     * @return The largest value.
+     * @throws NoSuchElementException If the tree is empty.
+     */
+    public K last() {
+        if (root.isExternal()) {
+            throw new NoSuchElementException();
+        }
+        Node<K> node = root;
+        while (!node.children[node.count].isExternal()) {
+            node = node.children[node.count];
+        }
+        return node.values[node.count - 1];
+    }
+
+    /**
+     * Count the values in the tree that are smaller than the given value.
+     * @param value The value to compare to.
+     * @return The number of smaller values, which is the index the value has or would have.
+     * @throws UnsupportedOperationException If the tree does not count values.
+     */
+    public int rank(K value) {
+        return rank(value, false);
+    }
+
+    /**
+     * Get the value at a given position in ascending order.
+     * @param index The position of the value, starting at 0.
+     * @return The value with exactly index smaller values in the tree.
+     * @throws IndexOutOfBoundsException If index is negative, or not smaller than the number of values.
+     * @throws UnsupportedOperationException If the tree does not count values.
+     */
+    public K select(int index) {
+        checkCountValues();
+        if (index < 0 || index >= root.size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + root.size);
+        }
+        Node<K> node = root;
+        while (true) {
+            int i = 0;
+            while (index > node.children[i].size) {
+                index -= node.children[i].size + 1;
+                i++;
+            }
+            if (index == node.children[i].size) {
+                return node.values[i];
+            }
+            node = node.children[i];
+        }
+    }
+
+    /**
+     * Count the values in the tree between two bounds.
+     * @param lo The lower bound (inclusive).
+     * @param hi The upper bound (inclusive).
+     * @return The number of values v with lo <= v <= hi.
+     * @throws UnsupportedOperationException If the tree does not count values.
+     */
+    public int countInRange(K lo, K hi) {
+        if (lo.compareTo(hi) > 0) {
+            checkCountValues();
+            return 0;
+        }
+        return rank(hi, true) - rank(lo, false);
+    }
+
+    /**
+     * Count the values in the tree that are smaller than (or equal to) the given value, in a single
+     * descent. Every value to the left of the path is counted, together with the subtree below it.
+     * @param value The value to compare to.
+     * @param inclusive Whether to count an equal value.
+     * @return The number of values.
+     */
+    private int rank(K value, boolean inclusive) {
+        checkCountValues();
+        int rank = 0;
+        long prefix = prefix(value);
+        Node<K> node = root;
+        while (!node.isExternal()) {
+            int index = node.indexOf(value, prefix);
+            int child = index >= 0 ? index : -index - 1;
+            for (int i = 0; i < child; i++) {
+                rank += node.children[i].size + 1;
+            }
+            if (index >= 0) {
+                return rank + node.children[index].size + (inclusive ? 1 : 0);
+            }
+            node = node.children[child];
+        }
+        return rank;
+    }
+
+    private void checkCountValues() {
+        if (!countValues) {
+            throw new UnsupportedOperationException("Tree does not count values");
+        }
+    }
+
+    /**
+     * Get the number of values in the tree.
+     * @return The number of values.
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Get the height of the tree.
+     * @return The number of internal nodes on a path from the root to an external node.
+     */
+    public int height() {
+        return height(root);
+    }
+
+    /**
+     * Count the internal nodes by the number of children they have. For a 2-4 tree the histogram
+     * gives the number of 2-, 3- and 4-nodes. This visits every node, so it takes O(n) time.
+     * @return Array where entry i is the number of nodes with i children.
+     */
+    public int[] nodeFillHistogram() {
+        int[] histogram = new int[order + 1];
+        if (root.isExternal()) {
+            return histogram;
+        }
+        Deque<Node<K>> stack = new ArrayDeque<>();
+        stack.push(root);
+        while (!stack.isEmpty()) {
+            Node<K> node = stack.pop();
+            histogram[node.count + 1]++;
+            if (!node.children[0].isExternal()) {
+                for (int i = 0; i <= node.count; i++) {
+                    stack.push(node.children[i]);
+                }
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Iterate over the values in ascending order. The tree must not be modified during iteration.
+     * @return Iterator over all values.
+     */
+    @Override
+    public Iterator<K> iterator() {
+        return new ValueIterator<>(root, null, false, null, false);
+    }
+
+    /**
+     * Iterate over the values in a range, in ascending order. The tree must not be modified during
+     * iteration.
+     * @param from The lower bound (inclusive).
+     * @param to The upper bound (exclusive).
+     * @return Iterator over the values v with from <= v < to.
+     */
+    public Iterator<K> iterator(K from, K to) {
+        return new ValueIterator<>(root, from, true, to, false);
+    }
+
+    /**
+     * Get a view of the values in a range.
+     * @param from The lower bound (inclusive).
+     * @param to The upper bound (exclusive).
+     * @return The values v with from <= v < to, in ascending order.
+     */
+    public Iterable<K> subSet(K from, K to) {
+        return () -> iterator(from, to);
+    }
+
+    /**
+     * Create a spliterator over the values. It splits at the boundaries between subtrees, so parallel
+     * streams divide the tree among threads without copying it.
+     * @return Spliterator over all values.
+     */
+    @Override
+    public Spliterator<K> spliterator() {
+        int positions = root.isExternal() ? 1 : 2 * root.count + 1;
+        return new ValueSpliterator<>(root, 0, positions, null, false, null, false, size);
+    }
+
+    /**
+     * Get a sequential stream of the values in ascending order. Use parallel() to process the
+     * values on multiple threads.
+     * @return Stream of all values.
+     */
+    public Stream<K> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Build a tree from values that are sorted in ascending order.
+     * @param values The values, in strictly ascending order.
+     * @param valuesPerNode The number of values to put in each node: 2 leaves room for later inserts,
+     *                      3 gives the smallest tree. Nodes get one value more or less where needed.
+     * @return A new tree holding the values.
+     * @throws IllegalArgumentException If the values are not sorted, or valuesPerNode is not 1, 2 or 3.
+     */
+    public static <K extends Comparable<K>> TwoFourTree<K> fromSorted(Iterator<? extends K> values, int valuesPerNode) {
+        return fromSorted(values, valuesPerNode, false);
+    }
+
+    /**
+     * Build a tree from values that are sorted in ascending order.
+     * @param values The values, in strictly ascending order.
+     * @param valuesPerNode The number of values to put in each node.
+     * @param countValues Whether the new tree keeps track of subtree sizes.
+     * @return A new tree holding the values.
+     * @throws IllegalArgumentException If the values are not sorted, or valuesPerNode is not 1, 2 or 3.
+     */
+    public static <K extends Comparable<K>> TwoFourTree<K> fromSorted(Iterator<? extends K> values, int valuesPerNode,
+                                                                      boolean countValues) {
+        List<K> list = new ArrayList<>();
+        values.forEachRemaining(list::add);
+        @SuppressWarnings("unchecked")
+        K[] array = (K[]) list.toArray(new Comparable[0]);
+        return fromSorted(array, valuesPerNode, countValues);
+    }
+
+    /**
+     * Build a tree from values that are sorted in ascending order. The tree is built bottom-up, one
+     * level at a time: each level takes its values from the array, and passes the values between its
+     * nodes on to the level above.
+     * @param values The values, in strictly ascending order.
+     * @param valuesPerNode The number of values to put in each node: 2 leaves room for later inserts,
+     *                      3 gives the smallest tree. Nodes get one value more or less where needed.
+     * @return A new tree holding the values.
+     * @throws IllegalArgumentException If the values are not sorted, or valuesPerNode is not 1, 2 or 3.
+     */
+    public static <K extends Comparable<K>> TwoFourTree<K> fromSorted(K[] values, int valuesPerNode) {
+        return fromSorted(values, valuesPerNode, false);
+    }
+
+    /**
+     * Build a tree from values that are sorted in ascending order.
+     * @param values The values, in strictly ascending order.
+     * @param valuesPerNode The number of values to put in each node.
+     * @param countValues Whether the new tree keeps track of subtree sizes.
+     * @return A new tree holding the values.
+     * @throws IllegalArgumentException If the values are not sorted, or valuesPerNode is not 1, 2 or 3.
+     */
+    public static <K extends Comparable<K>> TwoFourTree<K> fromSorted(K[] values, int valuesPerNode, boolean countValues) {
+        return fromSorted(values, 4, valuesPerNode, countValues);
+    }
+
+    /**
+     * Build a B-tree of a given order from values that are sorted in ascending order.
+     * @param values The values, in strictly ascending order.
+     * @param order The maximum number of children of a node.
+     * @param valuesPerNode The number of values to put in each node, between the minimum and the
+     *                      maximum number of values of a node other than the root.
+     * @param countValues Whether the new tree keeps track of subtree sizes.
+     * @return A new tree holding the values.
+     * @throws IllegalArgumentException If the values are not sorted, or valuesPerNode is out of range.
+     */
+    public static <K extends Comparable<K>> TwoFourTree<K> fromSorted(K[] values, int order, int valuesPerNode,
+                                                                      boolean countValues) {
+        return fromSorted(values, order, valuesPerNode, countValues, null);
+    }
+
+    /**
+     * Build a B-tree of a given order that stores normalized prefixes, from values that are sorted
+     * in ascending order.
+     * @param values The values, in strictly ascending order.
+     * @param order The maximum number of children of a node.
+     * @param valuesPerNode The number of values to put in each node, between the minimum and the
+     *                      maximum number of values of a node other than the root.
+     * @param countValues Whether the new tree keeps track of subtree sizes.
+     * @param normalizer Maps values to the prefixes that the nodes store, or null to not store prefixes.
+     * @return A new tree holding the values.
+     * @throws IllegalArgumentException If the values are not sorted, or valuesPerNode is out of range.
+     */
+    public static <K extends Comparable<K>> TwoFourTree<K> fromSorted(K[] values, int order, int valuesPerNode,
+                                                                      boolean countValues,
+                                                                      KeyNormalizer<? super K> normalizer) {
+        return fromSorted(new TwoFourTree<K>(order, countValues, normalizer), values, valuesPerNode);
+    }
+
+    /**
+     * Fill an empty tree with values that are sorted in ascending order.
+     * @param tree The empty tree, which determines the order, the counting and the prefixes.
+     * @param values The values, in strictly ascending order.
+     * @param valuesPerNode The number of values to put in each node.
+     * @return The tree.
+     */
+    private static <K extends Comparable<K>> TwoFourTree<K> fromSorted(TwoFourTree<K> tree, K[] values,
+                                                                       int valuesPerNode) {
+        int order = tree.order;
+        boolean countValues = tree.countValues;
+        if (valuesPerNode < tree.minValues || valuesPerNode > tree.maxValues) {
+            throw new IllegalArgumentException("Invalid number of values per node: " + valuesPerNode);
+        }
+        for (int i = 1; i < values.length; i++) {
+            if (values[i - 1].compareTo(values[i]) >= 0) {
+                throw new IllegalArgumentException("Values are not sorted at index " + i);
+            }
+        }
+
+        if (values.length == 0) {
+            return tree;
+        }
+        K[] level = values;
+        Node<K>[] children = null;
+        while (true) {
+            // Pick the number of nodes so that each gets between minValues and maxValues values.
+            // A single node is the root, which may have fewer.
+            int slots = level.length + 1;
+            int nodes = slots / (valuesPerNode + 1);
+            nodes = Math.max(nodes, (slots + tree.maxValues) / (tree.maxValues + 1));
+            nodes = Math.max(1, Math.min(nodes, slots / (tree.minValues + 1)));
+            int perNode = (level.length - nodes + 1) / nodes;
+            int extra = (level.length - nodes + 1) % nodes;
+
+            @SuppressWarnings("unchecked")
+            K[] separators = (K[]) new Comparable[nodes - 1];
+            @SuppressWarnings("unchecked")
+            Node<K>[] built = (Node<K>[]) new Node[nodes];
+            int next = 0;
+            int nextChild = 0;
+            for (int i = 0; i < nodes; i++) {
+                Node<K> node = new Node<K>(order, tree.normalizer);
+                node.count = perNode + (i < extra ? 1 : 0);
+                System.arraycopy(level, next, node.values, 0, node.count);
+                node.updatePrefixes();
+                next += node.count;
+                for (int j = 0; j <= node.count; j++) {
+                    node.children[j] = children == null ? Node.external() : children[nextChild++];
+                }
+                if (countValues) {
+                    node.updateSize();
+                }
+                built[i] = node;
+                if (i < nodes - 1) {
+                    separators[i] = level[next++];
+                }
+            }
+            if (nodes == 1) {
+                tree.root = built[0];
+                tree.size = values.length;
+                return tree;
+            }
+            level = separators;
+            children = built;
+        }
+    }
+
+    /**
+     * Marks the start of a snapshot: the bytes "24TS".
+     */
+    private static final int SNAPSHOT_MAGIC = 0x32345453;
+
+    /**
+     * Version of the snapshot format.
+     */
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /**
+     * Keys are written in blocks of about this many bytes, each with its own checksum.
+     */
+    private static final int SNAPSHOT_BLOCK_SIZE = 1 << 16;
+
+    /**
+     * Write the values of the tree to a stream, in ascending order. The snapshot is a sequence of
+     * blocks. Each block starts with the number of values in it, its length in bytes and a CRC32C
+     * checksum of those two, followed by the bytes and their CRC32C checksum. The first block is the
+     * header, marked by a count of -1, which holds the format version, the name of the codec, the
+     * order, the counting mode and the number of values. An empty block ends the snapshot. The
+     * insertion strategy and finger setting are not stored.
+     * @param out The stream. It is flushed but not closed.
+     * @param codec Converts the values to bytes.
+     * @throws IOException If writing fails.
+     */
+    public void writeSnapshot(OutputStream out, KeyCodec<K> codec) throws IOException {
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, SNAPSHOT_BLOCK_SIZE));
+        CRC32C checksum = new CRC32C();
+
+        ByteArrayOutputStream block = new ByteArrayOutputStream(SNAPSHOT_BLOCK_SIZE + 1024);
+        DataOutputStream blockData = new DataOutputStream(block);
+        blockData.writeInt(SNAPSHOT_MAGIC);
+        blockData.writeInt(SNAPSHOT_VERSION);
+        blockData.writeUTF(codec.name());
+        blockData.writeInt(order);
+        blockData.writeBoolean(countValues);
+        blockData.writeInt(size);
+        writeSnapshotBlock(data, -1, block, checksum);
+
+        int count = 0;
+        for (K value : this) {
+            codec.write(value, blockData);
+            count++;
+            if (block.size() >= SNAPSHOT_BLOCK_SIZE) {
+                writeSnapshotBlock(data, count, block, checksum);
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            writeSnapshotBlock(data, count, block, checksum);
+        }
+        writeSnapshotBlock(data, 0, block, checksum);
+        data.flush();
+    }
+
+    /**
+     * Write the values of the tree to a channel, such as a FileChannel.
+     * @param channel The channel. It is not closed.
+     * @param codec Converts the values to bytes.
+     * @throws IOException If writing fails.
+     * @see #writeSnapshot(OutputStream, KeyCodec)
+     */
+    public void writeSnapshot(WritableByteChannel channel, KeyCodec<K> codec) throws IOException {
+        writeSnapshot(Channels.newOutputStream(channel), codec);
+    }
+
+    /**
+     * Write a block of a snapshot, and clear it.
+     */
+    private static void writeSnapshotBlock(DataOutputStream data, int count, ByteArrayOutputStream block,
+                                           CRC32C checksum) throws IOException {
+        byte[] bytes = block.toByteArray();
+        data.writeInt(count);
+        data.writeInt(bytes.length);
+        data.writeInt(blockHeaderChecksum(count, bytes.length, checksum));
+        data.write(bytes);
+        checksum.reset();
+        checksum.update(bytes);
+        data.writeInt((int) checksum.getValue());
+        block.reset();
+    }
+
+    /**
+     * Compute the checksum of the count and length of a block. It is checked before the block is read,
+     * so that a corrupt length is not trusted.
+     */
+    private static int blockHeaderChecksum(int count, int length, CRC32C checksum) {
+        checksum.reset();
+        checksum.update(ByteBuffer.allocate(8).putInt(count).putInt(length).flip());
+        return (int) checksum.getValue();
+    }
+
+    /**
+     * Read a snapshot written by writeSnapshot, and build the tree from it bottom-up in O(n) time,
+     * with nodes about half full. The stream is read exactly up to the end of the snapshot.
+     * @param in The stream. It is not closed.
+     * @param codec Converts bytes to values. It must have the same name as the codec that wrote the snapshot.
+     * @return A new tree holding the values.
+     * @throws IOException If reading fails, or the snapshot is corrupt, of an unsupported version, or
+     *                     written with a different codec.
+     */
+    public static <K extends Comparable<K>> TwoFourTree<K> readSnapshot(InputStream in, KeyCodec<K> codec)
+            throws IOException {
+        return readSnapshot(in, codec, null);
+    }
+
+    /**
+     * Read a snapshot written by writeSnapshot into a tree that stores normalized prefixes. The
+     * snapshot does not record the normalizer, so a tree that used one must be read with the same
+     * one, or else it cannot be combined with the original by union, intersection or difference.
+     * @param in The stream. It is not closed.
+     * @param codec Converts bytes to values. It must have the same name as the codec that wrote the snapshot.
+     * @param normalizer Maps values to the prefixes that the nodes store, or null to not store prefixes.
+     * @return A new tree holding the values.
+     * @throws IOException If reading fails, or the snapshot is corrupt, of an unsupported version, or
+     *                     written with a different codec.
+     * @see #readSnapshot(InputStream, KeyCodec)
+     */
+    public static <K extends Comparable<K>> TwoFourTree<K> readSnapshot(InputStream in, KeyCodec<K> codec,
+                                                                        KeyNormalizer<? super K> normalizer)
+            throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        CRC32C checksum = new CRC32C();
+
+        if (data.readInt() != -1) {
+            throw new IOException("Not a snapshot");
+        }
+        DataInputStream header = readSnapshotBlock(data, -1, checksum);
+        if (header.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a snapshot");
+        }
+        int version = header.readInt();
+        if (version != SNAPSHOT_VERSION) {
+            throw new IOException("Unsupported snapshot version: " + version);
+        }
+        String codecName = header.readUTF();
+        if (!codecName.equals(codec.name())) {
+            throw new IOException("Snapshot was written with codec " + codecName + ", not " + codec.name());
+        }
+        int order = header.readInt();
+        boolean countValues = header.readBoolean();
+        int size = header.readInt();
+        if (order < 3 || size < 0) {
+            throw new IOException("Corrupt snapshot header");
+        }
+
+        @SuppressWarnings("unchecked")
+        K[] values = (K[]) new Comparable[size];
+        int read = 0;
+        while (true) {
+            int count = data.readInt();
+            DataInputStream block = readSnapshotBlock(data, count, checksum);
+            if (count == 0) {
+                break;
+            }
+            if (count < 0 || count > size - read) {
+                throw new IOException("Corrupt snapshot: invalid block of " + count + " values");
+            }
+            for (int i = 0; i < count; i++) {
+                values[read++] = codec.read(block);
+            }
+        }
+        if (read != size) {
+            throw new IOException("Corrupt snapshot: " + read + " values instead of " + size);
+        }
+        int minValues = (order + 1) / 2 - 1;
+        try {
+            return fromSorted(values, order, (minValues + order) / 2, countValues, normalizer);
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Corrupt snapshot: " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Read a snapshot from a channel, such as a FileChannel.
+     * @param channel The channel. It is not closed.
+     * @param codec Converts bytes to values.
+     * @return A new tree holding the values.
+     * @throws IOException If reading fails, or the snapshot is corrupt or incompatible.
+     * @see #readSnapshot(InputStream, KeyCodec)
+     */
+    public static <K extends Comparable<K>> TwoFourTree<K> readSnapshot(ReadableByteChannel channel,
+                                                                        KeyCodec<K> codec) throws IOException {
+        return readSnapshot(channel, codec, null);
+    }
+
+    /**
+     * Read a snapshot from a channel, such as a FileChannel, into a tree that stores normalized prefixes.
+     * @param channel The channel. It is not closed.
+     * @param codec Converts bytes to values.
+     * @param normalizer Maps values to the prefixes that the nodes store, or null to not store prefixes.
+     * @return A new tree holding the values.
+     * @throws IOException If reading fails, or the snapshot is corrupt or incompatible.
+     * @see #readSnapshot(InputStream, KeyCodec, KeyNormalizer)
+     */
+    public static <K extends Comparable<K>> TwoFourTree<K> readSnapshot(ReadableByteChannel channel,
+                                                                        KeyCodec<K> codec,
+                                                                        KeyNormalizer<? super K> normalizer)
+            throws IOException {
+        return readSnapshot(Channels.newInputStream(channel), codec, normalizer);
+    }
+
+    /**
+     * Read the rest of a block of a snapshot, after its count, and verify the checksums.
+     * @return A stream over the bytes of the block.
+     */
+    private static DataInputStream readSnapshotBlock(DataInputStream data, int count, CRC32C checksum)
+            throws IOException {
+        int length = data.readInt();
+        if (data.readInt() != blockHeaderChecksum(count, length, checksum) || length < 0) {
+            throw new IOException("Corrupt snapshot: checksum mismatch in block header");
+        }
+        byte[] bytes = new byte[length];
+        data.readFully(bytes);
+        checksum.reset();
+        checksum.update(bytes);
+        if (data.readInt() != (int) checksum.getValue()) {
+            throw new IOException("Corrupt snapshot: checksum mismatch");
+        }
+        return new DataInputStream(new BlockInputStream(bytes));
+    }
+
+    /**
+     * Stream over the bytes of a snapshot block. Unlike ByteArrayInputStream it is not synchronized,
+     * which matters because DataInputStream reads numbers one byte at a time.
+     */
+    private static final class BlockInputStream extends InputStream {
+        private final byte[] bytes;
+        private int position = 0;
+
+        BlockInputStream(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            return position < bytes.length ? bytes[position++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (position == bytes.length) {
+                return -1;
+            }
+            int n = Math.min(len, bytes.length - position);
+            System.arraycopy(bytes, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+
+    /**
+     * Convert a node to a Red-Black representation, given the representations of its children.
+     * A 2-node becomes a black node, a 3-node a black node with a red right child, and a 4-node a
+     * black node with two red children.
+     * @param node The node to convert.
+     * @param children The Red-Black representations of the children of the node.
+     * @param first Index of the first child in the children array.
+     * @return The Red-Black representation of the node.
+     */
+    private static <K extends Comparable<K>> RedBlackTree<K> convertToRedBlackTree(Node<K> node,
+                                                                                  RedBlackTree<K>[] children, int first) {
+        RedBlackTree.Color black = RedBlackTree.Color.BLACK;
+        RedBlackTree.Color red = RedBlackTree.Color.RED;
+        K[] values = node.values;
+        switch (node.count) {
+            case 1:
+                return new RedBlackTree<>(values[0], black, children[first], children[first + 1]);
+            case 2:
+                return new RedBlackTree<>(values[0], black, children[first],
+                        new RedBlackTree<>(values[1], red, children[first + 1], children[first + 2]));
+            case 3:
+                return new RedBlackTree<>(values[1], black,
+                        new RedBlackTree<>(values[0], red, children[first], children[first + 1]),
+                        new RedBlackTree<>(values[2], red, children[first + 2], children[first + 3]));
+            default:
+                throw new IllegalStateException("Node with " + (node.count + 1) + " children");
+        }
+    }
+
+    /**
+     * Convert this tree to a Red-Black representation in O(n) time. The nodes are converted in
+     * post-order without recursion: the converted children wait on a stack until their parent is
+     * converted. Every external node becomes a separate black node without an element.
+     * @return The Red-Black representation of the tree.
+     * @throws UnsupportedOperationException If the order of the tree is larger than 4.
+     */
+    public RedBlackTree<K> convertToRedBlackTree() {
+        if (order > 4) {
+            throw new UnsupportedOperationException("Only trees of order 3 or 4 can be converted: " + order);
+        }
+        if (root.isExternal()) {
+            return new RedBlackTree<>(null, RedBlackTree.Color.BLACK, null, null);
+        }
+        int height = 0;
+        for (Node<K> node = root; !node.isExternal(); node = node.children[0]) {
+            height++;
+        }
+        @SuppressWarnings("unchecked")
+        Node<K>[] nodes = (Node<K>[]) new Node[height];
+        int[] next = new int[height];
+        @SuppressWarnings("unchecked")
+        RedBlackTree<K>[] converted = (RedBlackTree<K>[]) new RedBlackTree[height * order + 1];
+        int convertedCount = 0;
+        nodes[0] = root;
+        int depth = 0;
+        while (depth >= 0) {
+            Node<K> node = nodes[depth];
+            int i = next[depth];
+            if (i > node.count) {
+                convertedCount -= node.count + 1;
+                converted[convertedCount] = convertToRedBlackTree(node, converted, convertedCount);
+                convertedCount++;
+                depth--;
+                continue;
+            }
+            next[depth] = i + 1;
+            Node<K> child = node.children[i];
+            if (child.isExternal()) {
+                converted[convertedCount++] = new RedBlackTree<>(null, RedBlackTree.Color.BLACK, null, null);
+            } else {
+                depth++;
+                nodes[depth] = child;
+                next[depth] = 0;
+            }
+        }
+        return converted[0];
+    }
+
+    /**
+     * Get the child of a black Red-Black node that corresponds to a child in the 2-4 tree: the
+     * children of a red child, or else the child itself.
+     * @param node A black node.
+     * @param i Index of the child in the corresponding 2-4 node.
+     * @return The child, which is black, an external node, or null.
+     */
+    private static <K extends Comparable<K>> RedBlackTree<K> redBlackChild(RedBlackTree<K> node, int i) {
+        RedBlackTree<K> left = node.getLeft();
+        if (isRed(left)) {
+            if (i < 2) {
+                return i == 0 ? left.getLeft() : left.getRight();
+            }
+            i--;
+        }
+        if (i == 0) {
+            return left;
+        }
+        RedBlackTree<K> right = node.getRight();
+        if (isRed(right)) {
+            return i == 1 ? right.getLeft() : right.getRight();
+        }
+        return right;
+    }
+
+    private static boolean isRed(RedBlackTree<?> node) {
+        return node != null && node.getColor() == RedBlackTree.Color.RED;
+    }
+
+    /**
+     * Convert a Red-Black tree to a 2-4 tree in O(n) time. Each black node is merged with its red
+     * children into a single node, in post-order without recursion.
+     * @param tree The Red-Black tree.
+     * @return A new 2-4 tree holding the elements of the Red-Black tree.
+     * @throws IllegalArgumentException If the Red-Black tree violates its invariants.
+     */
+    public static <K extends Comparable<K>> TwoFourTree<K> fromRedBlackTree(RedBlackTree<K> tree) {
+        return fromRedBlackTree(tree, false);
+    }
+
+    /**
+     * Convert a Red-Black tree to a 2-4 tree in O(n) time.
+     * @param tree The Red-Black tree.
+     * @param countValues Whether the new tree keeps track of subtree sizes.
+     * @return A new 2-4 tree holding the elements of the Red-Black tree.
+     * @throws IllegalArgumentException If the Red-Black tree violates its invariants.
+     */
+    public static <K extends Comparable<K>> TwoFourTree<K> fromRedBlackTree(RedBlackTree<K> tree, boolean countValues) {
+        InvariantReport report = tree.checkInvariants();
+        if (!report.isValid()) {
+            throw new IllegalArgumentException("Invalid Red-Black tree: " + report.violation());
+        }
+        TwoFourTree<K> result = new TwoFourTree<>(countValues);
+        if (report.values() == 0) {
+            return result;
+        }
+        // Every level of the 2-4 tree has exactly one black node on each path.
+        int height = report.height();
+        @SuppressWarnings("unchecked")
+        RedBlackTree<K>[] nodes = (RedBlackTree<K>[]) new RedBlackTree[height];
+        int[] next = new int[height];
+        @SuppressWarnings("unchecked")
+        Node<K>[] converted = (Node<K>[]) new Node[height * 4 + 1];
+        int convertedCount = 0;
+        nodes[0] = tree;
+        int depth = 0;
+        while (depth >= 0) {
+            RedBlackTree<K> node = nodes[depth];
+            int children = (isRed(node.getLeft()) ? 2 : 1) + (isRed(node.getRight()) ? 2 : 1);
+            int i = next[depth];
+            if (i == children) {
+                Node<K> merged = new Node<>(4, null);
+                int j = 0;
+                if (isRed(node.getLeft())) {
+                    merged.values[j++] = node.getLeft().getElement();
+                }
+                merged.values[j++] = node.getElement();
+                if (isRed(node.getRight())) {
+                    merged.values[j++] = node.getRight().getElement();
+                }
+                merged.count = j;
+                convertedCount -= children;
+                System.arraycopy(converted, convertedCount, merged.children, 0, children);
+                if (countValues) {
+                    merged.updateSize();
+                }
+                converted[convertedCount++] = merged;
+                depth--;
+                continue;
+            }
+            next[depth] = i + 1;
+            RedBlackTree<K> child = redBlackChild(node, i);
+            if (child == null || child.getElement() == null) {
+                converted[convertedCount++] = Node.external();
+            } else {
+                depth++;
+                nodes[depth] = child;
+                next[depth] = 0;
+            }
+        }
+        result.root = converted[0];
+        result.size = (int) report.values();
+        return result;
+    }
+
+    /**
+     * A subtree together with its height, as produced by split, join and the set operations. An
+     * empty subtree is an external node of height 0. The root may have fewer values than other
+     * nodes, like the root of a tree.
+     */
+    private static final class Part<K extends Comparable<K>> {
+        private final Node<K> root;
+        private final int height;
+
+        /**
+         * Number of values that a set operation found in both trees.
+         */
+        private final long matches;
+
+        Part(Node<K> root, int height, long matches) {
+            this.root = root;
+            this.height = height;
+            this.matches = matches;
+        }
+
+        boolean isEmpty() {
+            return height == 0;
+        }
+    }
+
+    /**
+     * The result of splitting a subtree at a value.
+     */
+    private static final class Split<K extends Comparable<K>> {
+        /**
+         * The values smaller than the value that the subtree was split at.
+         */
+        private final Part<K> left;
+
+        /**
+         * The value in the subtree that is equal to the value that it was split at, or null.
+         */
+        private final K found;
+
+        /**
+         * The values larger than the value that the subtree was split at.
+         */
+        private final Part<K> right;
+
+        Split(Part<K> left, K found, Part<K> right) {
+            this.left = left;
+            this.found = found;
+            this.right = right;
+        }
+    }
+
+    /**
+     * Operations supported by combine.
+     */
+    private enum SetOperation {
+        UNION, INTERSECTION, DIFFERENCE
+    }
+
+    /**
+     * Combined size of two trees above which set operations run in parallel.
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+
+    private static <K extends Comparable<K>> int height(Node<K> node) {
+        int height = 0;
+        for (; !node.isExternal(); node = node.children[0]) {
+            height++;
+        }
+        return height;
+    }
+
+    /**
+     * Join two subtrees and a value between them into a single subtree. The subtrees are modified:
+     * the lower one is attached to the side of the higher one, splitting nodes above it that overflow,
+     * so this takes time proportional to the difference in height.
+     * @param left The subtree with the smaller values.
+     * @param value A value larger than all values in left and smaller than all values in right.
+     * @param right The subtree with the larger values.
+     * @return The joined subtree.
+     */
+    private Part<K> join(Part<K> left, K value, Part<K> right) {
+        if (left.height == right.height) {
+            return joinEqual(left.root, value, right.root, left.height);
+        } else if (left.height > right.height) {
+            return joinRight(left, value, right);
+        } else {
+            return joinLeft(left, value, right);
+        }
+    }
+
+    /**
+     * Join two subtrees of the same height and a value between them.
+     */
+    private Part<K> joinEqual(Node<K> left, K value, Node<K> right, int height) {
+        if (height == 0) {
+            Node<K> node = new Node<>(order, normalizer, value, Node.external(), Node.external());
+            if (countValues) {
+                node.size = 1;
+            }
+            return new Part<>(node, 1, 0);
+        }
+        if (left.count + 1 + right.count <= maxValues) {
+            left.append(value, right);
+            if (countValues) {
+                left.updateSize();
+            }
+            return new Part<>(left, height, 0);
+        }
+        if (left.count < minValues || right.count < minValues) {
+            // The roots have enough values together to make two nodes of legal size.
+            value = left.balance(value, right);
+            if (countValues) {
+                left.updateSize();
+                right.updateSize();
+            }
+        }
+        Node<K> node = new Node<>(order, normalizer, value, left, right);
+        if (countValues) {
+            node.updateSize();
+        }
+        return new Part<>(node, height + 1, 0);
+    }
+
+    /**
+     * Join a lower subtree and a value to the right side of a higher subtree.
+     */
+    private Part<K> joinRight(Part<K> left, K value, Part<K> right) {
+        // Walk down the right edge to the node whose children have the height of the right subtree.
+        int levels = left.height - right.height;
+        @SuppressWarnings("unchecked")
+        Node<K>[] edge = (Node<K>[]) new Node[levels];
+        Node<K> node = left.root;
+        for (int level = 0; level < levels; level++) {
+            edge[level] = node;
+            node = node.children[node.count];
+        }
+        Node<K> parent = edge[levels - 1];
+        Node<K> attached = right.root;
+        if (right.height > 0 && attached.count < minValues) {
+            Node<K> sibling = parent.children[parent.count];
+            if (sibling.count + 1 + attached.count <= maxValues) {
+                sibling.append(value, attached);
+                attached = null;
+            } else {
+                value = sibling.balance(value, attached);
+            }
+            if (countValues) {
+                sibling.updateSize();
+            }
+        }
+        if (attached != null) {
+            if (countValues && !attached.isExternal()) {
+                attached.updateSize();
+            }
+            parent.insert(parent.count, value, attached);
+        }
+        return splitEdge(edge, left, false);
+    }
+
+    /**
+     * Join a lower subtree and a value to the left side of a higher subtree.
+     */
+    private Part<K> joinLeft(Part<K> left, K value, Part<K> right) {
+        // Walk down the left edge to the node whose children have the height of the left subtree.
+        int levels = right.height - left.height;
+        @SuppressWarnings("unchecked")
+        Node<K>[] edge = (Node<K>[]) new Node[levels];
+        Node<K> node = right.root;
+        for (int level = 0; level < levels; level++) {
+            edge[level] = node;
+            node = node.children[0];
+        }
+        Node<K> parent = edge[levels - 1];
+        Node<K> attached = left.root;
+        if (left.height > 0 && attached.count < minValues) {
+            Node<K> sibling = parent.children[0];
+            if (attached.count + 1 + sibling.count <= maxValues) {
+                attached.append(value, sibling);
+                parent.children[0] = attached;
+                if (countValues) {
+                    attached.updateSize();
+                }
+                attached = null;
+            } else {
+                value = attached.balance(value, sibling);
+                if (countValues) {
+                    sibling.updateSize();
+                }
+            }
+        }
+        if (attached != null) {
+            if (countValues && !attached.isExternal()) {
+                attached.updateSize();
+            }
+            // Insert the value and the attached subtree in front of the first child.
+            parent.insert(0, value, parent.children[0]);
+            parent.children[0] = attached;
+        }
+        return splitEdge(edge, right, true);
+    }
+
+    /**
+     * Split the nodes on the edge of a subtree that overflowed after a join, from the bottom up,
+     * and update their subtree sizes.
+     * @param edge The nodes on the edge, from the root down.
+     * @param tree The subtree.
+     * @param leftEdge Whether the edge is the left edge of the subtree, instead of the right edge.
+     * @return The subtree, with a new root if the old root was split.
+     */
+    private Part<K> splitEdge(Node<K>[] edge, Part<K> tree, boolean leftEdge) {
+        for (int level = edge.length - 1; level >= 0; level--) {
+            Node<K> node = edge[level];
+            if (node.count <= maxValues) {
+                if (countValues) {
+                    node.updateSize();
+                }
+                continue;
+            }
+            int middle = node.count / 2;
+            K middleValue = node.values[middle];
+            Node<K> right = node.split(middle);
+            if (countValues) {
+                node.updateSize();
+                right.updateSize();
+            }
+            if (level == 0) {
+                Node<K> root = new Node<>(order, normalizer, middleValue, node, right);
+                if (countValues) {
+                    root.updateSize();
+                }
+                return new Part<>(root, tree.height + 1, 0);
+            }
+            Node<K> parent = edge[level - 1];
+            parent.insert(leftEdge ? 0 : parent.count, middleValue, right);
+        }
+        return tree;
+    }
+
+    /**
+     * Join two subtrees without a value between them.
+     * @param left The subtree with the smaller values.
+     * @param right The subtree with the larger values.
+     * @return The joined subtree.
+     */
+    private Part<K> join(Part<K> left, Part<K> right) {
+        if (left.isEmpty()) {
+            return right;
+        }
+        if (right.isEmpty()) {
+            return left;
+        }
+        Node<K> node = left.root;
+        while (!node.children[node.count].isExternal()) {
+            node = node.children[node.count];
+        }
+        Split<K> split = split(left.root, left.height, node.values[node.count - 1]);
+        return join(split.left, split.found, right);
+    }
+
+    /**
+     * Split a subtree at a value. The nodes of the subtree are reused, so it must not be used
+     * afterwards. This takes time proportional to the height of the subtree, since the joins on
+     * the way back up telescope.
+     * @param node The root of the subtree.
+     * @param height The height of the subtree.
+     * @param value The value to split at.
+     * @return The values smaller and larger than the value, and the value itself if it was present.
+     */
+    private Split<K> split(Node<K> node, int height, K value) {
+        if (height == 0) {
+            Part<K> empty = new Part<>(Node.<K>external(), 0, 0);
+            return new Split<>(empty, null, empty);
+        }
+        int index = node.indexOf(value);
+        if (index >= 0) {
+            K found = node.values[index];
+            Part<K> right = range(node, height, index + 1, node.count);
+            Part<K> left = range(node, height, 0, index);
+            return new Split<>(left, found, right);
+        }
+        int i = -index - 1;
+        Split<K> below = split(node.children[i], height - 1, value);
+        Part<K> right = below.right;
+        if (i < node.count) {
+            right = join(right, node.values[i], range(node, height, i + 1, node.count));
+        }
+        Part<K> left = below.left;
+        if (i > 0) {
+            K separator = node.values[i - 1];
+            left = join(range(node, height, 0, i - 1), separator, left);
+        }
+        return new Split<>(left, below.found, right);
+    }
+
+    /**
+     * Take a range of the values of a node, and the children around them, as a subtree. A range
+     * that starts at the first value reuses the node itself, so it must be taken last.
+     * @param node The node.
+     * @param height The height of the node.
+     * @param from Index of the first value.
+     * @param to Index after the last value.
+     * @return The subtree, which is the child at index from if the range is empty.
+     */
+    private Part<K> range(Node<K> node, int height, int from, int to) {
+        if (from == to) {
+            return new Part<>(node.children[from], height - 1, 0);
+        }
+        Node<K> result;
+        if (from == 0) {
+            node.truncate(to);
+            result = node;
+        } else {
+            result = node.copyRange(from, to);
+        }
+        if (countValues) {
+            result.updateSize();
+        }
+        return new Part<>(result, height, 0);
+    }
+
+    /**
+     * Apply a set operation to two subtrees, which are both reused. The root of the lower subtree is
+     * taken apart: the other subtree is split at each of its values, and the pieces are combined
+     * with its children, in parallel if there is room for more tasks. The results are joined with
+     * the values of the root that belong in the result.
+     * @param operation The operation.
+     * @param a The first operand, whose values are kept when both subtrees contain a value.
+     * @param b The second operand.
+     * @param tasks Number of tasks that the work may still be divided into.
+     * @return The result, with the number of values found in both subtrees.
+     */
+    private Part<K> combine(SetOperation operation, Part<K> a, Part<K> b, int tasks) {
+        if (a.isEmpty() || b.isEmpty()) {
+            if (operation == SetOperation.UNION) {
+                return a.isEmpty() ? b : a;
+            }
+            return operation == SetOperation.INTERSECTION ? new Part<>(Node.<K>external(), 0, 0) : a;
+        }
+        boolean exposeA = a.height <= b.height;
+        Node<K> exposed = exposeA ? a.root : b.root;
+        Part<K> rest = exposeA ? b : a;
+        int count = exposed.count;
+        @SuppressWarnings("unchecked")
+        K[] found = (K[]) new Comparable[count];
+        @SuppressWarnings("unchecked")
+        Part<K>[] pieces = (Part<K>[]) new Part[count + 1];
+        for (int i = 0; i < count; i++) {
+            Split<K> split = split(rest.root, rest.height, exposed.values[i]);
+            pieces[i] = split.left;
+            found[i] = split.found;
+            rest = split.right;
+        }
+        pieces[count] = rest;
+
+        int childHeight = (exposeA ? a.height : b.height) - 1;
+        @SuppressWarnings("unchecked")
+        Part<K>[] results = (Part<K>[]) new Part[count + 1];
+        if (tasks > 1) {
+            List<SetOperationTask> subtasks = new ArrayList<>(count + 1);
+            for (int i = 0; i <= count; i++) {
+                Part<K> child = new Part<>(exposed.children[i], childHeight, 0);
+                subtasks.add(new SetOperationTask(operation, exposeA ? child : pieces[i], exposeA ? pieces[i] : child,
+                        tasks / (count + 1)));
+            }
+            ForkJoinTask.invokeAll(subtasks);
+            for (int i = 0; i <= count; i++) {
+                results[i] = subtasks.get(i).join();
+            }
+        } else {
+            for (int i = 0; i <= count; i++) {
+                Part<K> child = new Part<>(exposed.children[i], childHeight, 0);
+                results[i] = combine(operation, exposeA ? child : pieces[i], exposeA ? pieces[i] : child, 1);
+            }
+        }
+
+        long matches = 0;
+        Part<K> result = results[0];
+        for (int i = 0; i < count; i++) {
+            matches += results[i].matches;
+            K value = exposeA ? exposed.values[i] : found[i];
+            if (found[i] != null) {
+                matches++;
+            }
+            boolean keep;
+            switch (operation) {
+                case UNION:
+                    keep = true;
+                    value = value != null ? value : exposed.values[i];
+                    break;
+                case INTERSECTION:
+                    keep = found[i] != null;
+                    break;
+                default:
+                    keep = exposeA && found[i] == null;
+                    break;
+            }
+            result = keep ? join(result, value, results[i + 1]) : join(result, results[i + 1]);
+        }
+        matches += results[count].matches;
+        return new Part<>(result.root, result.height, matches);
+    }
+
+    /**
+     * Applies a set operation to two subtrees in a fork-join pool.
+     */
+    private final class SetOperationTask extends RecursiveTask<Part<K>> {
+        private final SetOperation operation;
+        private final Part<K> a;
+        private final Part<K> b;
+        private final int tasks;
+
+        SetOperationTask(SetOperation operation, Part<K> a, Part<K> b, int tasks) {
+            this.operation = operation;
+            this.a = a;
+            this.b = b;
+            this.tasks = tasks;
+        }
+
+        @Override
+        protected Part<K> compute() {
+            return combine(operation, a, b, tasks);
+        }
+    }
+
+    /**
+     * Replace the contents of this tree by the result of a set operation with another tree.
+     * @param operation The operation.
+     * @param other The other tree, which is left empty.
+     */
+    private void combine(SetOperation operation, TwoFourTree<K> other) {
+        if (other == this) {
+            if (operation == SetOperation.DIFFERENCE) {
+                root = Node.external();
+                size = 0;
+                fingerDepth = 0;
+            }
+            return;
+        }
+        if (other.order != order || other.countValues != countValues || other.normalizer != normalizer) {
+            throw new IllegalArgumentException(
+                    "Trees must have the same order and normalizer, and both count values or not");
+        }
+        Part<K> a = new Part<>(root, height(root), 0);
+        Part<K> b = new Part<>(other.root, height(other.root), 0);
+        Part<K> result;
+        if ((long) size + other.size >= PARALLEL_THRESHOLD) {
+            int tasks = 8 * ForkJoinPool.getCommonPoolParallelism();
+            result = ForkJoinPool.commonPool().invoke(new SetOperationTask(operation, a, b, tasks));
+        } else {
+            result = combine(operation, a, b, 1);
+        }
+        root = result.root;
+        switch (operation) {
+            case UNION:
+                size = (int) (size + other.size - result.matches);
+                break;
+            case INTERSECTION:
+                size = (int) result.matches;
+                break;
+            default:
+                size = (int) (size - result.matches);
+                break;
+        }
+        fingerDepth = 0;
+        other.root = Node.external();
+        other.size = 0;
+        other.fingerDepth = 0;
+    }
+
+    /**
+     * Add all values of another tree to this tree. Both trees are split and joined rather than
+     * searched value by value, so merging m values into a tree of n values takes
+     * O(m log(n/m + 1)) time, and large trees are merged in parallel. Values that are present in
+     * both trees are kept from this tree.
+     * @param other A tree with the same order, normalizer and counting mode. Its nodes are reused, and it is left empty.
+     * @throws IllegalArgumentException If the order or counting mode of the other tree differs.
+     */
+    public void union(TwoFourTree<K> other) {
+        combine(SetOperation.UNION, other);
+    }
+
+    /**
+     * Remove all values from this tree that are not present in another tree, in O(m log(n/m + 1)) time.
+     * @param other A tree with the same order, normalizer and counting mode. Its nodes are reused, and it is left empty.
+     * @throws IllegalArgumentException If the order or counting mode of the other tree differs.
+     */
+    public void intersection(TwoFourTree<K> other) {
+        combine(SetOperation.INTERSECTION, other);
+    }
+
+    /**
+     * Remove all values from this tree that are present in another tree, in O(m log(n/m + 1)) time.
+     * @param other A tree with the same order, normalizer and counting mode. Its nodes are reused, and it is left empty.
+     * @throws IllegalArgumentException If the order or counting mode of the other tree differs.
+     */
+    public void difference(TwoFourTree<K> other) {
+        combine(SetOperation.DIFFERENCE, other);
+    }
+
+    /**
+     * Check the local invariants of a single node: its number of values, that its values and
+     * children are present, and that the stored prefixes match the values.
+     * @param node The node.
+     * @param minValues The minimum number of values in the node.
+     * @return Description of the violation, or null if the node is valid.
+     */
+    private static <K extends Comparable<K>> String checkNode(Node<K> node, int minValues) {
+        if (node.isExternal()) {
+            if (node != Node.EXTERNAL || node.count > 0 || node.children != null) {
+                return "External node with children";
+            }
+            return null;
+        }
+        if (node.count < minValues || node.count > node.values.length - 1) {
+            return "Node size invariant violated (" + (node.count + 1) + " children)";
+        }
+        for (int i = 0; i <= node.count; i++) {
+            if (node.children[i] == null) {
+                return "Internal node with null child";
+            }
+            if (i < node.count && node.values[i] == null) {
+                return "Non-last value is null";
+            }
+            if (i < node.count && node.prefixes != null
+                    && node.prefixes[i] != node.normalizer.prefix(node.values[i])) {
+                return "Prefix of value " + node.values[i] + " is stale";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check the subtree sizes stored in a node, assuming that those of its children are correct.
+     * @param node The node.
+     * @return Description of the violation, or null if the size is correct.
+     */
+    private static <K extends Comparable<K>> String checkSize(Node<K> node) {
+        int size = node.count;
+        for (int i = 0; i <= node.count; i++) {
+            size += node.children[i].size;
+        }
+        return size == node.size ? null : "Incorrect subtree size (" + node.size + " instead of " + size + ")";
+    }
+
+    /**
+     * Check the invariants of a subtree without recursion. The values are visited in order, with a
+     * stack as deep as the subtree, and each value is compared with the previous one; this also
+     * checks that it lies between the values around the subtree in the nodes above. Every external
+     * node must be at the same depth as the leftmost one.
+     * @param top The root of the subtree.
+     * @param low Exclusive lower bound for the values, or null.
+     * @param high Exclusive upper bound for the values, or null.
+     * @param topMinValues The minimum number of values in the root of the subtree.
+     * @param minValues The minimum number of values in the other nodes.
+     * @param checkSize Whether to check the subtree sizes.
+     * @return The first violation, or the height and number of values of the subtree.
+     */
+    private static <K extends Comparable<K>> InvariantReport check(Node<K> top, K low, K high, int topMinValues,
+                                                                   int minValues, boolean checkSize) {
+        String violation = checkNode(top, topMinValues);
+        if (violation != null) {
+            return InvariantReport.violated(violation);
+        }
+        int height = 0;
+        for (Node<K> node = top; node != null && !node.isExternal(); node = node.children[0]) {
+            height++;
+        }
+        if (height == 0) {
+            return InvariantReport.valid(0, 0);
+        }
+
+        @SuppressWarnings("unchecked")
+        Node<K>[] nodes = (Node<K>[]) new Node[height];
+        int[] next = new int[height];
+        nodes[0] = top;
+        long values = top.count;
+        K previous = low;
+        int depth = 0;
+        while (depth >= 0) {
+            Node<K> node = nodes[depth];
+            int i = next[depth];
+            if (i > node.count) {
+                violation = checkSize ? checkSize(node) : null;
+                if (violation != null) {
+                    return InvariantReport.violated(violation);
+                }
+                depth--;
+                continue;
+            }
+            next[depth] = i + 1;
+            if (i > 0) {
+                K value = node.values[i - 1];
+                if (previous != null && value.compareTo(previous) <= 0) {
+                    return InvariantReport.violated(previous == low ? "Value " + value + " too small"
+                            : "Incorrect order between " + previous + " and " + value);
+                }
+                previous = value;
+            }
+            Node<K> child = node.children[i];
+            violation = checkNode(child, minValues);
+            if (violation != null) {
+                return InvariantReport.violated(violation);
+            }
+            if (child.isExternal() != (depth == height - 1)) {
+                return InvariantReport.violated("Depth not equal (" + (depth + 1) + " and " + height + ")");
+            }
+            if (!child.isExternal()) {
+                values += child.count;
+                depth++;
+                nodes[depth] = child;
+                next[depth] = 0;
+            }
+        }
+        if (previous != null && high != null && previous.compareTo(high) >= 0) {
+            return InvariantReport.violated("Value " + previous + " too large");
+        }
+        return InvariantReport.valid(height, values);
+    }
+
+    /**
+     * Checks the invariants of a subtree, forking a task for each child until the work is divided
+     * into enough tasks to keep the pool busy.
+     */
+    private static class InvariantTask<K extends Comparable<K>> extends RecursiveTask<InvariantReport> {
+        private final Node<K> node;
+        private final K low;
+        private final K high;
+        private final int nodeMinValues;
+        private final int minValues;
+        private final boolean checkSize;
+
+        /**
+         * Number of tasks that the subtree may still be divided into.
+         */
+        private final int tasks;
+
+        InvariantTask(Node<K> node, K low, K high, int nodeMinValues, int minValues, boolean checkSize, int tasks) {
+            this.node = node;
+            this.low = low;
+            this.high = high;
+            this.nodeMinValues = nodeMinValues;
+            this.minValues = minValues;
+            this.checkSize = checkSize;
+            this.tasks = tasks;
+        }
+
+        @Override
+        protected InvariantReport compute() {
+            if (tasks <= 1 || node.isExternal()) {
+                return check(node, low, high, nodeMinValues, minValues, checkSize);
+            }
+            String violation = checkNode(node, nodeMinValues);
+            if (violation != null) {
+                return InvariantReport.violated(violation);
+            }
+            K previous = low;
+            for (int i = 0; i < node.count; i++) {
+                K value = node.values[i];
+                if (previous != null && value.compareTo(previous) <= 0) {
+                    return InvariantReport.violated(i == 0 ? "Value " + value + " too small"
+                            : "Incorrect order between " + previous + " and " + value);
+                }
+                previous = value;
+            }
+            if (high != null && previous.compareTo(high) >= 0) {
+                return InvariantReport.violated("Value " + previous + " too large");
+            }
+
+            @SuppressWarnings("unchecked")
+            InvariantTask<K>[] subtasks = (InvariantTask<K>[]) new InvariantTask[node.count + 1];
+            for (int i = 0; i <= node.count; i++) {
+                subtasks[i] = new InvariantTask<>(node.children[i], i > 0 ? node.values[i - 1] : low,
+                        i < node.count ? node.values[i] : high, minValues, minValues, checkSize,
+                        tasks / (node.count + 1));
+            }
+            invokeAll(subtasks);
+            long values = node.count;
+            int height = -1;
+            for (InvariantTask<K> subtask : subtasks) {
+                InvariantReport report = subtask.join();
+                if (!report.isValid()) {
+                    return report;
+                }
+                if (height != -1 && report.height() != height) {
+                    return InvariantReport.violated("Depth not equal (" + report.height() + " and " + height + ")");
+                }
+                height = report.height();
+                values += report.values();
+            }
+            violation = checkSize ? checkSize(node) : null;
+            if (violation != null) {
+                return InvariantReport.violated(violation);
+            }
+            return InvariantReport.valid(height + 1, values);
+        }
+    }
+
+    /**
+     * Check the invariants of the tree. The check does not recurse, so it works for trees of any
+     * height, and it allocates only a stack as deep as the tree (per task, in parallel mode).
+     * @param parallel Whether to check subtrees in parallel in the common fork-join pool.
+     * @return The first violation that was found, or the height and number of values of the tree.
+     */
+    public InvariantReport checkInvariants(boolean parallel) {
+        InvariantReport report;
+        if (parallel) {
+            int tasks = 8 * ForkJoinPool.getCommonPoolParallelism();
+            report = ForkJoinPool.commonPool().invoke(
+                    new InvariantTask<>(root, null, null, 1, minValues, countValues, tasks));
+        } else {
+            report = check(root, null, null, 1, minValues, countValues);
+        }
+        if (report.isValid() && report.values() != size) {
+            return InvariantReport.violated("Incorrect size (" + size + " instead of " + report.values() + ")");
+        }
+        return report;
+    }
+
+    /**
+     * Check the invariants of the tree on the calling thread.
+     * @return The first violation that was found, or the height and number of values of the tree.
+     */
+    public InvariantReport checkInvariants() {
+        return checkInvariants(false);
+    }
+
+    /**
+     * Verify the invariants for the tree.
+     * @throws IllegalStateException If the tree violates an invariant.
+     */
+    public void verifyInvariants() {
+        InvariantReport report = checkInvariants();
+        if (!report.isValid()) {
+            throw new IllegalStateException(report.violation());
+        }
+    }
+
+    /**
+     * Write the tree in the same format as toString, one node at a time, so that the representation
+     * of a large tree never has to be held in memory. The tree is walked without recursion.
+     * @param out Where to write the tree.
+     * @throws IOException If writing fails.
+     */
+    public void writeTo(Appendable out) throws IOException {
+        if (root.isExternal()) {
+            out.append("[]");
+            return;
+        }
+        @SuppressWarnings("unchecked")
+        Node<K>[] nodes = (Node<K>[]) new Node[8];
+        int[] next = new int[8];
+        nodes[0] = root;
+        int depth = 0;
+        out.append('[');
+        while (depth >= 0) {
+            Node<K> node = nodes[depth];
+            int i = next[depth];
+            if (i > node.count) {
+                out.append(']');
+                depth--;
+                continue;
+            }
+            next[depth] = i + 1;
+            if (i > 0) {
+                out.append(' ').append(String.valueOf(node.values[i - 1])).append(' ');
+            }
+            Node<K> child = node.children[i];
+            if (child.isExternal()) {
+                out.append("[]");
+            } else {
+                out.append('[');
+                depth++;
+                if (depth == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, 2 * depth);
+                    next = Arrays.copyOf(next, 2 * depth);
+                }
+                nodes[depth] = child;
+                next[depth] = 0;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        try {
+            writeTo(sb);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return sb.toString();
+    }
+
+    public static void main(String[] args) {
+        TwoFourTree<Integer> tree = new TwoFourTree<>();
+
+        try {
+            for (int n : new int[] {5, 3, 7, 6, 1, 2, 9, 8, 10, 12, 11, 13}) {
+                tree.add(n);
+                tree.verifyInvariants();
+                System.out.println(tree);
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace(System.err);
+        }
+        // expected: [[[[] 1 [] 2 []] 3 [[] 5 []] 6 [[] 7 [] 8 []]] 9 [[[] 10 [] 11 []] 12 [[] 13 []]]]
+
+        try {
+            TwoFourTree<Integer> loaded = fromSorted(new Integer[] {1, 2, 3, 5, 6, 7, 8, 9, 10, 11, 12, 13}, 2);
+            loaded.verifyInvariants();
+            System.out.println(loaded);
+        } catch (Exception ex) {
+            ex.printStackTrace(System.err);
+        }
+
+        try {
+            for (int n : new int[] {9, 1, 5, 12, 3}) {
+                tree.remove(n);
+                tree.verifyInvariants();
+                System.out.println(tree);
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace(System.err);
+        }
+
+        try {
+            RedBlackTree<Integer> rb = tree.convertToRedBlackTree();
+            rb.verifyInvariants();
+            System.out.println(rb);
+            TwoFourTree<Integer> back = fromRedBlackTree(rb);
+            back.verifyInvariants();
+            System.out.println(back);
+        } catch (Exception ex) {
+            ex.printStackTrace(System.err);
+        }
+        // expected: [[[] 2 <[] 6 []>] 7 <[[] 8 []] 10 [[] 11 <[] 13 []>]>]
+        //           [[[] 2 [] 6 []] 7 [[] 8 []] 10 [[] 11 [] 13 []]]
     }
 }
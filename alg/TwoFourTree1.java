@@ -1,23 +1,30 @@
-import java.util.LinkedList;
-import java.util.List;
+package alg;
 
-public class TwoFourTree1<K extends Comparable<K>> {
-    private static class Pair<K extends Comparable<K>> {
-        private K value;
-        private Node<K> child;
+import java.util.Arrays;
 
-        Pair(K value, Node<K> child) {
-            this.value = value;
-            this.child = child;
-        }
-    }
+public class TwoFourTree1<K extends Comparable<K>> {
     private static class Node<K extends Comparable<K>> {
         /**
-         * Pairs of elements in the node, with the corresponding child. The child
-         * should be followed for values smaller than the given element. If element is null,
-         * it should be followed for values larger than the largest element in the node.
+         * Maximum number of values in a node. The arrays have room for one more value, so that
+         * a node can temporarily overflow before it is split.
          */
-        private final List<Pair<K>> pairs;
+        private static final int MAX_VALUES = 3;
+
+        /**
+         * Values in the node, in ascending order. Only the first count entries are used.
+         */
+        private final K[] values;
+
+        /**
+         * Children of the node. The child at index i should be followed for values smaller than
+         * values[i], the child at index count for values larger than the largest value in the node.
+         */
+        private final Node<K>[] children;
+
+        /**
+         * Number of values in the node.
+         */
+        private int count = 0;
 
         /**
          * The parent node of this node.
@@ -32,18 +39,21 @@ public class TwoFourTree1<K extends Comparable<K>> {
         /**
          * Create a new external node.
          */
+        @SuppressWarnings("unchecked")
         Node() {
-            pairs = new LinkedList<>();
-            pairs.add(new Pair<>(null, null));
+            values = (K[]) new Comparable[MAX_VALUES + 1];
+            children = (Node<K>[]) new Node[MAX_VALUES + 2];
         }
 
         /**
          * Create a new 2-node.
          */
         Node(K value1, Node<K> child1, Node<K> child2) {
-            pairs = new LinkedList<>();
-            pairs.add(new Pair<>(value1, child1));
-            pairs.add(new Pair<>(null, child2));
+            this();
+            values[0] = value1;
+            children[0] = child1;
+            children[1] = child2;
+            count = 1;
             child1.parent = this;
             child2.parent = this;
             isExternal = false;
@@ -53,30 +63,22 @@ public class TwoFourTree1<K extends Comparable<K>> {
          * Create a new 3-node.
          */
         Node(K value1, K value2, Node<K> child1, Node<K> child2, Node<K> child3) {
-            pairs = new LinkedList<>();
-            pairs.add(new Pair<>(value1, child1));
-            pairs.add(new Pair<>(value2, child2));
-            pairs.add(new Pair<>(null, child3));
-            child1.parent = this;
-            child2.parent = this;
+            this(value1, child1, child2);
+            values[1] = value2;
+            children[2] = child3;
+            count = 2;
             child3.parent = this;
-            isExternal = false;
         }
 
         /**
          * Create a new 4-node.
          */
         Node(K value1, K value2, K value3, Node<K> child1, Node<K> child2, Node<K> child3, Node<K> child4) {
-            pairs = new LinkedList<>();
-            pairs.add(new Pair<>(value1, child1));
-            pairs.add(new Pair<>(value2, child2));
-            pairs.add(new Pair<>(value3, child3));
-            pairs.add(new Pair<>(null, child4));
-            child1.parent = this;
-            child2.parent = this;
-            child3.parent = this;
+            this(value1, value2, child1, child2, child3);
+            values[2] = value3;
+            children[3] = child4;
+            count = 3;
             child4.parent = this;
-            isExternal = false;
         }
 
         /**
@@ -86,26 +88,17 @@ public class TwoFourTree1<K extends Comparable<K>> {
          * @return Index of inserted value.
          */
         int insert(K value, Node<K> child) {
-            if (child == null) {
-                child = new Node<>();
-            }
-            Pair<K> pair = new Pair<>(value, child);
             int i = 0;
-            if (pair.child != null) {
-                pair.child.parent = this;
-            }
-            if (isExternal) {
-                replaceChild(pairs.size() - 1, new Node<>());
-            }
-            isExternal = false;
-            for (Pair<K> p : pairs) {
-                if (p.value == null || p.value.compareTo(pair.value) >= 0) {
-                    pairs.add(i, pair);
-                    return i;
-                }
+            while (i < count && values[i].compareTo(value) < 0) {
                 i++;
             }
-            return -1;
+            System.arraycopy(values, i, values, i + 1, count - i);
+            System.arraycopy(children, i, children, i + 1, count + 1 - i);
+            values[i] = value;
+            children[i] = child;
+            child.parent = this;
+            count++;
+            return i;
         }
 
         /**
@@ -114,42 +107,57 @@ public class TwoFourTree1<K extends Comparable<K>> {
          * @param child New child node.
          */
         void replaceChild(int i, Node<K> child) {
-            pairs.get(i).child = child;
+            children[i] = child;
             child.parent = this;
         }
 
+        /**
+         * Move the values and children to the right of the given index to a new node. The value
+         * at the index itself is removed from this node as well, and should be moved to the parent.
+         * @param middle Index of the value to split at.
+         * @return The new node holding the larger values.
+         */
+        Node<K> split(int middle) {
+            Node<K> right = new Node<>();
+            int rightCount = count - middle - 1;
+            System.arraycopy(values, middle + 1, right.values, 0, rightCount);
+            System.arraycopy(children, middle + 1, right.children, 0, rightCount + 1);
+            for (int i = 0; i <= rightCount; i++) {
+                right.children[i].parent = right;
+            }
+            right.count = rightCount;
+            right.isExternal = false;
+            Arrays.fill(values, middle, count, null);
+            Arrays.fill(children, middle + 1, count + 1, null);
+            count = middle;
+            return right;
+        }
+
         /**
          * Check whether the value exists in this node.
          * @param value Value to check.
          * @return Whether the value exists.
          */
         boolean contains(K value) {
-            for (Pair<K> pair : pairs) {
-                if (pair.value != null && pair.value.compareTo(value) == 0) {
-                    return true;
-                }
-            }
-            return false;
-        }
-
-        K getValue(int index) {
-            return pairs.get(index).value;
+            return indexOf(value) >= 0;
         }
 
         /**
-         * Replace a value in this node with an equivalent version.
-         * @param value The new value.
-         * @return The old version that was previously stored in the node.
+         * Find the given value in this node.
+         * @param value Value to look for.
+         * @return Index of the value, or (-(index of the child to follow) - 1) if it is not in this node.
          */
-        K replaceValue(K value) {
-            for (Pair<K> pair : pairs) {
-                if (pair.value.compareTo(value) == 0) {
-                    K val = pair.value;
-                    pair.value = value;
-                    return val;
+        int indexOf(K value) {
+            for (int i = 0; i < count; i++) {
+                int cmp = values[i].compareTo(value);
+                if (cmp == 0) {
+                    return i;
+                }
+                if (cmp > 0) {
+                    return -i - 1;
                 }
             }
-            return null;
+            return -count - 1;
         }
 
         /**
@@ -158,33 +166,24 @@ public class TwoFourTree1<K extends Comparable<K>> {
          * @return The child node to follow.
          */
         Node<K> findChildByValue(K value) {
-            for (Pair<K> pair : pairs) {
-                if (pair.value == null || pair.value.compareTo(value) > 0) {
-                    return pair.child;
-                }
+            int i = 0;
+            while (i < count && values[i].compareTo(value) <= 0) {
+                i++;
             }
-            return null;
-        }
-
-        Node<K> getChild(int index) {
-            return pairs.get(index).child;
-        }
-
-        int size() {
-            return pairs.size();
+            return children[i];
         }
 
         @Override
         public String toString() {
             StringBuilder sb = new StringBuilder();
             sb.append('[');
-            for (Pair<K> p : pairs) {
-                if (p.child != null) {
-                    sb.append(p.child);
+            for (int i = 0; i <= count; i++) {
+                if (children[i] != null) {
+                    sb.append(children[i]);
                 }
-                if (p.value != null) {
+                if (i < count) {
                     sb.append(' ');
-                    sb.append(p.value);
+                    sb.append(values[i]);
                     sb.append(' ');
                 }
             }
@@ -200,49 +199,46 @@ public class TwoFourTree1<K extends Comparable<K>> {
          */
         private int verifyInvariants(K min, K max) {
             if (this.isExternal) {
-                if (this.pairs.size() > 1 || this.pairs.get(0).value != null || this.pairs.get(0).child != null) {
+                if (this.count > 0 || this.children[0] != null) {
                     System.out.println("External node with childen");
                     return -1;
                 }
                 return 0;
             } else {
-                if (this.pairs.size() < 2 || this.pairs.size() > 4) {
-                    System.out.println("2-4 invariant violated ("+this.pairs.size()+")");
+                if (this.count < 1 || this.count > MAX_VALUES) {
+                    System.out.println("2-4 invariant violated ("+(this.count + 1)+")");
                     return -1;
                 }
-                int i = 0;
                 K last = null;
                 int lastDepth = -1;
-                for (Pair<K> pair : this.pairs) {
-                    if (pair.child == null) {
+                for (int i = 0; i <= this.count; i++) {
+                    Node<K> child = this.children[i];
+                    K value = i < this.count ? this.values[i] : null;
+                    if (child == null) {
                         System.out.println("Internal node with null child");
                         return -1;
                     }
-                    if (pair.child.parent != this) {
+                    if (child.parent != this) {
                         System.out.println("Incorrect parent pointer");
                         return -1;
                     }
-                    if (pair.value != null && i == this.pairs.size() - 1) {
-                        System.out.println("Last value is not null");
-                        return -1;
-                    }
-                    if (pair.value == null && i < this.pairs.size() - 1) {
+                    if (value == null && i < this.count) {
                         System.out.println("Non-last value is null");
                         return -1;
                     }
-                    if (pair.value != null && min != null && min.compareTo(pair.value) > 0) {
-                        System.out.println("Value " + pair.value + " too small");
+                    if (value != null && min != null && min.compareTo(value) > 0) {
+                        System.out.println("Value " + value + " too small");
                         return -1;
                     }
-                    if (pair.value != null && max != null && max.compareTo(pair.value) < 0) {
-                        System.out.println("Value " + pair.value + " too large");
+                    if (value != null && max != null && max.compareTo(value) < 0) {
+                        System.out.println("Value " + value + " too large");
                         return -1;
                     }
-                    if (pair.value != null && last != null && pair.value.compareTo(last) <= 0) {
-                        System.out.println("Incorrect order between "+last+" and "+pair.value);
+                    if (value != null && last != null && value.compareTo(last) <= 0) {
+                        System.out.println("Incorrect order between "+last+" and "+value);
                         return -1;
                     }
-                    int depth = pair.child.verifyInvariants(last == null ? min : last, pair.value == null ? max : pair.value);
+                    int depth = child.verifyInvariants(last == null ? min : last, value == null ? max : value);
                     if (depth == -1) {
                         System.out.println("Invariant violated in child node");
                         return -1;
@@ -251,9 +247,8 @@ public class TwoFourTree1<K extends Comparable<K>> {
                         System.out.println("Depth not equal ("+depth+" and "+lastDepth+")");
                         return -1;
                     }
-                    last = pair.value;
+                    last = value;
                     lastDepth = depth;
-                    i++;
                 }
                 return lastDepth + 1;
             }
@@ -273,78 +268,58 @@ public class TwoFourTree1<K extends Comparable<K>> {
      * @return The old value that was stored in the node, if it was already present, or null.
      */
     public K add(K value) {
+        if (root.isExternal()) {
+            root = new Node<>(value, new Node<>(), new Node<>());
+            return null;
+        }
+
         Node<K> node = root;
 
-        // Find the leaf node where the value should be inserted.
-        while (!node.isExternal()) {
-            Pair<K> pair = node.pairs.get(0);
-            if (value == null || value.compareTo(pair.value) < 0) {
-                node = pair.child;
+        // Find the lowest internal node where the value should be inserted.
+        while (true) {
+            Node<K> child;
+            if (value.compareTo(node.values[0]) < 0) {
+                child = node.children[0];
             } else {
-                int i = node.pairs.size() - 1;
-                pair = node.pairs.get(i);
-                while (pair.value == null) {
-                    pair = node.pairs.get(--i);
-                }
-                if (value.compareTo(pair.value) > 0) {
-                    node = node.pairs.get(i + 1).child;
+                int i = node.count - 1;
+                if (value.compareTo(node.values[i]) > 0) {
+                    child = node.children[i + 1];
                 } else {
-                    for (Pair<K> p : node.pairs) {
-                        if (p.value != null && value.compareTo(p.value) == 0) {
-                            return p.value;
+                    for (int j = 0; j <= i; j++) {
+                        if (value.compareTo(node.values[j]) == 0) {
+                            return node.values[j];
                         }
                     }
-                    node = node.findChildByValue(value);
+                    child = node.findChildByValue(value);
                 }
             }
+            if (child.isExternal()) {
+                break;
+            }
+            node = child;
         }
 
         // Insert the value into the leaf node.
-        node.insert(value, null);
+        node.insert(value, new Node<>());
 
         // Split the node if necessary.
-        while (node.pairs.size() > 3) {
-            int middle = node.pairs.size() / 2;
-            K middleValue = node.pairs.get(middle).value;
-            Node<K> left = new Node<>();
-            Node<K> right = new Node<>();
-
-            for (int i = 0; i < middle; i++) {
-                Pair<K> p = node.pairs.get(i);
-                left.pairs.add(p);
-                if (!p.child.isExternal()) {
-                    p.child.parent = left;
-                }
-            }
-            left.pairs.add(new Pair<>(null, node.pairs.get(middle).child));
-            if (!node.pairs.get(middle).child.isExternal()) {
-                node.pairs.get(middle).child.parent = left;
-            }
-
-            for (int i = middle + 1; i < node.pairs.size(); i++) {
-                Pair<K> p = node.pairs.get(i);
-                right.pairs.add(p);
-                if (!p.child.isExternal()) {
-                    p.child.parent = right;
-                }
-            }
-            right.pairs.add(new Pair<>(null, node.pairs.get(node.pairs.size() - 1).child));
-            if (!node.pairs.get(node.pairs.size() - 1).child.isExternal()) {
-                node.pairs.get(node.pairs.size() - 1).child.parent = right;
-            }
+        while (node.count > Node.MAX_VALUES) {
+            int middle = node.count / 2;
+            K middleValue = node.values[middle];
+            Node<K> right = node.split(middle);
 
             if (node.parent == null) {
-                root = new Node<>(middleValue, left, right);
+                root = new Node<>(middleValue, node, right);
                 break;
             } else {
-                int index = node.parent.insert(middleValue, left);
+                int index = node.parent.insert(middleValue, node);
                 node.parent.replaceChild(index + 1, right);
                 node = node.parent;
             }
         }
 
-    return null;
-}
+        return null;
+    }
 
     
     /**
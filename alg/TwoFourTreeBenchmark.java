@@ -0,0 +1,648 @@
+package alg;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Simple timing benchmarks for TwoFourTree. Every measurement is run a few times after a warm-up,
+ * and the fastest run is reported. These are quick checks in a single JVM; the JMH benchmarks in
+ * jmh/, run with jmh/run.sh, give results that are comparable between commits.
+ */
+public class TwoFourTreeBenchmark {
+    private static final int WARMUP_RUNS = 2;
+    private static final int RUNS = 5;
+
+    /**
+     * Measure the fastest of a number of runs.
+     * @param run The code to measure.
+     * @return Time in nanoseconds.
+     */
+    private static long time(Runnable run) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            run.run();
+        }
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = System.nanoTime();
+            run.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+
+    private static Integer[] sortedKeys(int n) {
+        Integer[] keys = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = i;
+        }
+        return keys;
+    }
+
+    /**
+     * Keys that are sorted, except that each key is moved a small random distance, like timestamps
+     * that arrive slightly out of order.
+     */
+    private static Integer[] nearlySortedKeys(int n, Random random) {
+        Integer[] keys = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = 16 * i + random.nextInt(256);
+        }
+        return keys;
+    }
+
+    private static Integer[] randomKeys(int n, Random random) {
+        Integer[] keys = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = random.nextInt();
+        }
+        return keys;
+    }
+
+    private static void report(String name, int n, long nanos) {
+        System.out.printf("%-40s %10.1f ns/op%n", name, (double) nanos / n);
+    }
+
+    /**
+     * Compare inserting from the root with finger insertion.
+     */
+    private static void fingerInsertion(int n) {
+        Random random = new Random(42);
+        String[] names = {"sorted", "nearly sorted", "random"};
+        Integer[][] inputs = {sortedKeys(n), nearlySortedKeys(n, random), randomKeys(n, random)};
+        for (int i = 0; i < inputs.length; i++) {
+            Integer[] keys = inputs[i];
+            for (boolean finger : new boolean[] {false, true}) {
+                long nanos = time(() -> {
+                    TwoFourTree<Integer> tree = new TwoFourTree<>();
+                    tree.setFingerInsertion(finger);
+                    for (Integer key : keys) {
+                        tree.add(key);
+                    }
+                });
+                report("add, " + names[i] + (finger ? ", finger" : ", root"), n, nanos);
+            }
+        }
+    }
+
+    /**
+     * Measure the throughput of a mix of contains and add calls from a number of threads at once.
+     * @param threads Number of threads.
+     * @param operations Number of operations per thread.
+     * @param readPercentage Percentage of the operations that are contains calls.
+     * @param contains The contains operation.
+     * @param add The add operation.
+     * @return Throughput in operations per second.
+     */
+    private static double throughput(int threads, int operations, int readPercentage,
+                                     Predicate<Integer> contains, Consumer<Integer> add) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            Random random = new Random(t);
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+                for (int i = 0; i < operations; i++) {
+                    Integer key = random.nextInt(4 * operations);
+                    if (random.nextInt(100) < readPercentage) {
+                        contains.test(key);
+                    } else {
+                        add.accept(key);
+                    }
+                }
+            });
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return (double) threads * operations / (System.nanoTime() - begin) * 1e9;
+    }
+
+    /**
+     * Compare ConcurrentTwoFourTree with a TwoFourTree behind a global lock, for 1 to N threads and
+     * several read/write ratios.
+     */
+    private static void concurrentAccess(int n) throws InterruptedException {
+        int maxThreads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        for (int readPercentage : new int[] {50, 90, 99}) {
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                int operations = n / threads;
+                double best = 0;
+                double bestLocked = 0;
+                for (int run = 0; run < WARMUP_RUNS + RUNS; run++) {
+                    ConcurrentTwoFourTree<Integer> tree = new ConcurrentTwoFourTree<>();
+                    TwoFourTree<Integer> lockedTree = new TwoFourTree<>();
+                    double ops = throughput(threads, operations, readPercentage, tree::contains, tree::add);
+                    double lockedOps = throughput(threads, operations, readPercentage,
+                            key -> {
+                                synchronized (lockedTree) {
+                                    return lockedTree.contains(key);
+                                }
+                            },
+                            key -> {
+                                synchronized (lockedTree) {
+                                    lockedTree.add(key);
+                                }
+                            });
+                    if (run >= WARMUP_RUNS) {
+                        best = Math.max(best, ops);
+                        bestLocked = Math.max(bestLocked, lockedOps);
+                    }
+                }
+                System.out.printf("%d%% reads, %2d threads: concurrent %8.2f Mops/s, synchronized %8.2f Mops/s%n",
+                        readPercentage, threads, best / 1e6, bestLocked / 1e6);
+            }
+        }
+    }
+
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Measure the cost of PersistentTwoFourTree: the time per add compared to TwoFourTree, and the
+     * memory that is retained by each snapshot when one value is added between snapshots.
+     */
+    private static void persistentSnapshots(int n) {
+        Integer[] keys = randomKeys(n, new Random(42));
+        long nanos = time(() -> {
+            TwoFourTree<Integer> tree = new TwoFourTree<>();
+            for (Integer key : keys) {
+                tree.add(key);
+            }
+        });
+        report("add, random, mutable", n, nanos);
+        nanos = time(() -> {
+            PersistentTwoFourTree<Integer> tree = new PersistentTwoFourTree<>();
+            for (Integer key : keys) {
+                tree.add(key);
+            }
+        });
+        report("add, random, persistent", n, nanos);
+
+        PersistentTwoFourTree<Integer> tree = new PersistentTwoFourTree<>();
+        for (Integer key : keys) {
+            tree.add(key);
+        }
+        int versions = 10_000;
+        Integer[] extra = randomKeys(versions, new Random(43));
+        List<PersistentTwoFourTree<Integer>> snapshots = new ArrayList<>(versions);
+        long before = usedMemory();
+        for (Integer key : extra) {
+            snapshots.add(tree.snapshot());
+            tree.add(key);
+        }
+        long after = usedMemory();
+        System.out.printf("%-40s %10.1f bytes/version (%d snapshots of %d values)%n", "retained per snapshot",
+                (double) (after - before) / versions, snapshots.size(), tree.size());
+    }
+
+    /**
+     * Compare B-trees of different orders: the time per insert of random keys, and the time per
+     * lookup of keys that are present. Run with n = 10^6, 10^7 and 10^8 (and a large enough heap) to
+     * see how the best order changes once the tree no longer fits in the caches.
+     */
+    private static void order(int n) {
+        Integer[] keys = randomKeys(n, new Random(42));
+        Integer[] lookups = keys.clone();
+        Collections.shuffle(Arrays.asList(lookups), new Random(43));
+        for (int order : new int[] {3, 4, 8, 16, 32, 64, 128}) {
+            long nanos = time(() -> {
+                TwoFourTree<Integer> tree = new TwoFourTree<>(order);
+                for (Integer key : keys) {
+                    tree.add(key);
+                }
+            });
+            report("add, random, order " + order, n, nanos);
+
+            TwoFourTree<Integer> tree = new TwoFourTree<>(order);
+            for (Integer key : keys) {
+                tree.add(key);
+            }
+            nanos = time(() -> {
+                int found = 0;
+                for (Integer key : lookups) {
+                    if (tree.contains(key)) {
+                        found++;
+                    }
+                }
+                if (found != n) {
+                    throw new IllegalStateException();
+                }
+            });
+            report("contains, random, order " + order, n, nanos);
+        }
+    }
+
+    /**
+     * Compare bottom-up insertion, which splits overflowing nodes on the way back up, with top-down
+     * insertion, which splits full nodes on the way down.
+     */
+    private static void insertionStrategy(int n) {
+        Random random = new Random(42);
+        String[] names = {"sorted", "random"};
+        Integer[][] inputs = {sortedKeys(n), randomKeys(n, random)};
+        for (int order : new int[] {4, 16}) {
+            for (int i = 0; i < inputs.length; i++) {
+                Integer[] keys = inputs[i];
+                for (TwoFourTree.InsertionStrategy strategy : TwoFourTree.InsertionStrategy.values()) {
+                    long nanos = time(() -> {
+                        TwoFourTree<Integer> tree = new TwoFourTree<>(order);
+                        tree.setInsertionStrategy(strategy);
+                        for (Integer key : keys) {
+                            tree.add(key);
+                        }
+                    });
+                    report("add, " + names[i] + ", order " + order + ", " + strategy, n, nanos);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compare merging a delta of n / 100 random keys into a tree of n random keys with union, against
+     * adding the keys one at a time. Building the trees is not measured.
+     */
+    private static void union(int n) {
+        Integer[] keys = randomKeys(n, new Random(42));
+        Arrays.sort(keys);
+        Integer[] distinct = Arrays.stream(keys).distinct().toArray(Integer[]::new);
+        Integer[] delta = randomKeys(n / 100, new Random(43));
+        Arrays.sort(delta);
+        Integer[] distinctDelta = Arrays.stream(delta).distinct().toArray(Integer[]::new);
+        long best = Long.MAX_VALUE;
+        long bestAdd = Long.MAX_VALUE;
+        for (int run = 0; run < WARMUP_RUNS + RUNS; run++) {
+            TwoFourTree<Integer> tree = TwoFourTree.fromSorted(distinct, 3);
+            TwoFourTree<Integer> other = TwoFourTree.fromSorted(distinctDelta, 3);
+            long start = System.nanoTime();
+            tree.union(other);
+            long nanos = System.nanoTime() - start;
+
+            tree = TwoFourTree.fromSorted(distinct, 3);
+            start = System.nanoTime();
+            for (Integer key : delta) {
+                tree.add(key);
+            }
+            long addNanos = System.nanoTime() - start;
+            if (run >= WARMUP_RUNS) {
+                best = Math.min(best, nanos);
+                bestAdd = Math.min(bestAdd, addNanos);
+            }
+        }
+        report("union, n/100 into n", delta.length, best);
+        report("add, n/100 into n", delta.length, bestAdd);
+    }
+
+    /**
+     * Measure the cost of metrics: adds and lookups of n random keys without metrics, with counting
+     * metrics, and with JFR metrics while no recording is running.
+     */
+    private static void metrics(int n) {
+        Integer[] keys = randomKeys(n, new Random(42));
+        String[] names = {"no metrics", "counting metrics", "JFR metrics"};
+        for (int i = 0; i < names.length; i++) {
+            int variant = i;
+            long nanos = time(() -> {
+                TwoFourTree<Integer> tree = new TwoFourTree<>();
+                JfrTreeMetrics jfr = null;
+                if (variant == 1) {
+                    tree.setMetrics(new CountingTreeMetrics());
+                } else if (variant == 2) {
+                    jfr = new JfrTreeMetrics(tree);
+                    tree.setMetrics(jfr);
+                }
+                for (Integer key : keys) {
+                    tree.add(key);
+                }
+                for (Integer key : keys) {
+                    tree.contains(key);
+                }
+                if (jfr != null) {
+                    jfr.close();
+                }
+            });
+            report("add and contains, " + names[i], 2 * n, nanos);
+        }
+    }
+
+    /**
+     * Compare counting n random keys drawn from n / 16 distinct keys in a TwoFourMap with merge,
+     * which descends once per key, against get followed by put, which descends twice.
+     */
+    private static void map(int n) {
+        Random random = new Random(42);
+        Integer[] keys = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = random.nextInt(Math.max(1, n / 16));
+        }
+        long nanos = time(() -> {
+            TwoFourMap<Integer, Integer> counts = new TwoFourMap<>();
+            for (Integer key : keys) {
+                counts.merge(key, 1, Integer::sum);
+            }
+        });
+        report("count, merge", n, nanos);
+        nanos = time(() -> {
+            TwoFourMap<Integer, Integer> counts = new TwoFourMap<>();
+            for (Integer key : keys) {
+                Integer count = counts.get(key);
+                counts.put(key, count == null ? 1 : count + 1);
+            }
+        });
+        report("count, get and put", n, nanos);
+    }
+
+    /**
+     * Compare adding batches of random keys to a tree of n random keys with addAll, against calling
+     * add for each key. Building the tree is not measured.
+     */
+    private static void addAll(int n) {
+        Integer[] keys = randomKeys(n, new Random(42));
+        Arrays.sort(keys);
+        Integer[] distinct = Arrays.stream(keys).distinct().toArray(Integer[]::new);
+        for (int batchSize : new int[] {n / 100, n / 10, n}) {
+            List<Integer> batch = Arrays.asList(randomKeys(batchSize, new Random(43)));
+            long best = Long.MAX_VALUE;
+            long bestAdd = Long.MAX_VALUE;
+            for (int run = 0; run < WARMUP_RUNS + RUNS; run++) {
+                TwoFourTree<Integer> tree = TwoFourTree.fromSorted(distinct, 2);
+                long start = System.nanoTime();
+                tree.addAll(batch);
+                long nanos = System.nanoTime() - start;
+
+                tree = TwoFourTree.fromSorted(distinct, 2);
+                start = System.nanoTime();
+                for (Integer key : batch) {
+                    tree.add(key);
+                }
+                long addNanos = System.nanoTime() - start;
+                if (run >= WARMUP_RUNS) {
+                    best = Math.min(best, nanos);
+                    bestAdd = Math.min(bestAdd, addNanos);
+                }
+            }
+            report("addAll, " + batchSize + " into n", batchSize, best);
+            report("add, " + batchSize + " into n", batchSize, bestAdd);
+        }
+    }
+
+    /**
+     * Compare rebuilding a tree of n random keys with add against reading it from a snapshot file,
+     * and measure writing the snapshot. The file is in the temporary directory, so it is probably
+     * read from the page cache.
+     */
+    private static void snapshot(int n) throws IOException {
+        Integer[] keys = randomKeys(n, new Random(42));
+        TwoFourTree<Integer> tree = new TwoFourTree<>();
+        long nanos = time(() -> {
+            TwoFourTree<Integer> rebuilt = new TwoFourTree<>();
+            for (Integer key : keys) {
+                rebuilt.add(key);
+            }
+        });
+        report("rebuild, add", n, nanos);
+        for (Integer key : keys) {
+            tree.add(key);
+        }
+
+        Path file = Files.createTempFile("snapshot", ".bin");
+        try {
+            nanos = time(() -> {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                    tree.writeSnapshot(channel, KeyCodec.INT);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+            report("write snapshot", tree.size(), nanos);
+            nanos = time(() -> {
+                try (FileChannel channel = FileChannel.open(file)) {
+                    TwoFourTree.readSnapshot(channel, KeyCodec.INT);
+                } catch (IOException ex) {
+                    throw new UncheckedIOException(ex);
+                }
+            });
+            report("read snapshot", tree.size(), nanos);
+            System.out.printf("%-40s %10.1f MB/s%n", "read snapshot", Files.size(file) * 1e3 / nanos);
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Measure adding n random keys to a DiskTwoFourTree, committing every 100000 keys, and then
+     * looking them up after reopening the file. The heap holds at most 4096 decoded nodes.
+     */
+    private static void disk(int n) throws IOException {
+        long[] keys = new Random(42).longs(n).toArray();
+        Path file = Files.createTempFile("tree", ".db");
+        Files.delete(file);
+        try {
+            long start = System.nanoTime();
+            try (DiskTwoFourTree tree = DiskTwoFourTree.open(file)) {
+                for (int i = 0; i < n; i++) {
+                    tree.add(keys[i]);
+                    if (i % 100_000 == 99_999) {
+                        tree.commit();
+                    }
+                }
+            }
+            report("disk add", n, System.nanoTime() - start);
+            try (DiskTwoFourTree tree = DiskTwoFourTree.open(file)) {
+                start = System.nanoTime();
+                for (long key : keys) {
+                    tree.contains(key);
+                }
+                report("disk contains", n, System.nanoTime() - start);
+                System.out.println("disk tree: " + tree.checkInvariants());
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * String key that counts the calls to compareTo.
+     */
+    private static final class CountedKey implements Comparable<CountedKey> {
+        private static long comparisons = 0;
+        private final String text;
+
+        CountedKey(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public int compareTo(CountedKey other) {
+            comparisons++;
+            return text.compareTo(other.text);
+        }
+    }
+
+    /**
+     * Random strings of lowercase letters, or with a common prefix and a zero-padded random number.
+     */
+    private static String[] stringKeys(int n, Random random, boolean commonPrefix) {
+        String[] keys = new String[n];
+        for (int i = 0; i < n; i++) {
+            if (commonPrefix) {
+                keys[i] = String.format("user/%09d", random.nextInt(1_000_000_000));
+            } else {
+                char[] chars = new char[12];
+                for (int j = 0; j < chars.length; j++) {
+                    chars[j] = (char) ('a' + random.nextInt(26));
+                }
+                keys[i] = new String(chars);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Compare adding and looking up n string keys in trees of order 16 with and without stored
+     * prefixes: the number of calls to compareTo per operation, and the time. Keys with a common
+     * prefix of 8 characters show the worst case, where every prefix comparison is a tie.
+     */
+    private static void prefix(int n) {
+        KeyNormalizer<CountedKey> counted = key -> KeyNormalizer.STRING.prefix(key.text);
+        for (boolean commonPrefix : new boolean[] {false, true}) {
+            String[] keys = stringKeys(n, new Random(42), commonPrefix);
+            CountedKey[] countedKeys = Arrays.stream(keys).map(CountedKey::new).toArray(CountedKey[]::new);
+            String kind = commonPrefix ? "common prefix" : "random";
+            for (boolean prefixes : new boolean[] {false, true}) {
+                String name = kind + (prefixes ? ", prefixes" : ", no prefixes");
+                TwoFourTree<CountedKey> countedTree = new TwoFourTree<>(16, false, prefixes ? counted : null);
+                CountedKey.comparisons = 0;
+                for (CountedKey key : countedKeys) {
+                    countedTree.add(key);
+                }
+                for (CountedKey key : countedKeys) {
+                    countedTree.contains(key);
+                }
+                System.out.printf("%-40s %10.2f compareTo/op%n", "add and contains, " + name,
+                        (double) CountedKey.comparisons / (2 * n));
+                long nanos = time(() -> {
+                    TwoFourTree<String> tree = new TwoFourTree<>(16, false, prefixes ? KeyNormalizer.STRING : null);
+                    for (String key : keys) {
+                        tree.add(key);
+                    }
+                    for (String key : keys) {
+                        tree.contains(key);
+                    }
+                });
+                report("add and contains, " + name, 2 * n, nanos);
+            }
+        }
+    }
+
+    /**
+     * Compare adding n random keys to a TwoFourTree against a BufferedTwoFourTree with a few buffer
+     * sizes, including the final flush, and measure lookups while the buffers are still full. The
+     * adds are also measured by InsertBenchmark in jmh/.
+     */
+    private static void buffered(int n) {
+        Integer[] keys = randomKeys(n, new Random(42));
+        long nanos = time(() -> {
+            TwoFourTree<Integer> tree = new TwoFourTree<>();
+            for (Integer key : keys) {
+                tree.add(key);
+            }
+        });
+        report("add", n, nanos);
+        for (int bufferSize : new int[] {16, BufferedTwoFourTree.DEFAULT_BUFFER_SIZE, 256}) {
+            nanos = time(() -> {
+                BufferedTwoFourTree<Integer> tree = new BufferedTwoFourTree<>(bufferSize);
+                for (Integer key : keys) {
+                    tree.add(key);
+                }
+                tree.flush();
+            });
+            report("buffered add and flush, buffer " + bufferSize, n, nanos);
+            BufferedTwoFourTree<Integer> tree = new BufferedTwoFourTree<>(bufferSize);
+            for (Integer key : keys) {
+                tree.add(key);
+            }
+            nanos = time(() -> {
+                for (Integer key : keys) {
+                    tree.contains(key);
+                }
+            });
+            report("buffered contains, buffer " + bufferSize, n, nanos);
+        }
+    }
+
+    /**
+     * Run the benchmarks.
+     * @param args Optionally the name of a single benchmark to run (finger, concurrent, persistent,
+     *             order, insertion, union, metrics, map,
+     *             addall, snapshot, disk, prefix, buffered), and the
+     *             number of keys or operations.
+     */
+    public static void main(String[] args) throws InterruptedException, IOException {
+        String benchmark = args.length > 0 ? args[0] : "all";
+        int n = args.length > 1 ? Integer.parseInt(args[1]) : 1_000_000;
+        if (benchmark.equals("all") || benchmark.equals("finger")) {
+            fingerInsertion(n);
+        }
+        if (benchmark.equals("all") || benchmark.equals("concurrent")) {
+            concurrentAccess(n);
+        }
+        if (benchmark.equals("all") || benchmark.equals("persistent")) {
+            persistentSnapshots(n);
+        }
+        if (benchmark.equals("all") || benchmark.equals("order")) {
+            order(n);
+        }
+        if (benchmark.equals("all") || benchmark.equals("insertion")) {
+            insertionStrategy(n);
+        }
+        if (benchmark.equals("all") || benchmark.equals("union")) {
+            union(n);
+        }
+        if (benchmark.equals("all") || benchmark.equals("metrics")) {
+            metrics(n);
+        }
+        if (benchmark.equals("all") || benchmark.equals("map")) {
+            map(n);
+        }
+        if (benchmark.equals("all") || benchmark.equals("addall")) {
+            addAll(n);
+        }
+        if (benchmark.equals("all") || benchmark.equals("snapshot")) {
+            snapshot(n);
+        }
+        if (benchmark.equals("all") || benchmark.equals("disk")) {
+            disk(n);
+        }
+        if (benchmark.equals("all") || benchmark.equals("prefix")) {
+            prefix(n);
+        }
+        if (benchmark.equals("all") || benchmark.equals("buffered")) {
+            buffered(n);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+#!/bin/sh
+# Build the trees and the benchmarks, and run the benchmarks with the GC profiler (which reports
+# the allocation rate). Results are written to jmh/results/<commit>.json, so that runs of
+# different commits can be compared. Extra arguments are passed to JMH, for example
+# "InsertBenchmark -p size=100000" to run a subset.
+set -e
+cd "$(dirname "$0")/.."
+mvn -B -q install -DskipTests
+mvn -B -q -f jmh/pom.xml package
+mkdir -p jmh/results
+commit=$(git rev-parse --short HEAD)
+if [ -n "$(git status --porcelain -- alg)" ]; then
+    commit="$commit-dirty"
+fi
+java -jar jmh/target/benchmarks.jar -prof gc -rf json -rff "jmh/results/$commit.json" "$@"
@@ -0,0 +1,111 @@
+package alg.bench;
+
+import alg.BufferedTwoFourTree;
+import alg.TwoFourTree;
+import alg.TwoFourTree1;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to build a set by inserting n keys one at a time, for each tree implementation. The keys are
+ * generated from a fixed seed, so every run and every commit inserts exactly the same keys.
+ *
+ * RedBlackTree only describes the shape of a tree and has no insert, so java.util.TreeSet, which is
+ * a red-black tree, stands in for it. BufferedTwoFourTree-b is a BufferedTwoFourTree with buffers of
+ * b values, and its time includes the final flush, so that all keys are in their place.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class InsertBenchmark {
+    @Param({"TwoFourTree", "TwoFourTree1", "TreeSet",
+            "BufferedTwoFourTree-16", "BufferedTwoFourTree-64", "BufferedTwoFourTree-256"})
+    public String implementation;
+
+    /**
+     * sequential: ascending keys; random: uniformly distributed keys; duplicates: random keys
+     * drawn from n / 16 distinct values, so most inserts find the key already present.
+     */
+    @Param({"sequential", "random", "duplicates"})
+    public String workload;
+
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    private Integer[] keys;
+
+    @Setup(Level.Trial)
+    public void generateKeys() {
+        Random random = new Random(42);
+        keys = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            switch (workload) {
+                case "sequential":
+                    keys[i] = i;
+                    break;
+                case "random":
+                    keys[i] = random.nextInt();
+                    break;
+                case "duplicates":
+                    keys[i] = random.nextInt(Math.max(1, size / 16));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown workload: " + workload);
+            }
+        }
+    }
+
+    @Benchmark
+    public Object insert() {
+        if (implementation.startsWith("BufferedTwoFourTree-")) {
+            int bufferSize = Integer.parseInt(implementation.substring("BufferedTwoFourTree-".length()));
+            BufferedTwoFourTree<Integer> tree = new BufferedTwoFourTree<>(bufferSize);
+            for (Integer key : keys) {
+                tree.add(key);
+            }
+            tree.flush();
+            return tree;
+        }
+        switch (implementation) {
+            case "TwoFourTree": {
+                TwoFourTree<Integer> tree = new TwoFourTree<>();
+                for (Integer key : keys) {
+                    tree.add(key);
+                }
+                return tree;
+            }
+            case "TwoFourTree1": {
+                TwoFourTree1<Integer> tree = new TwoFourTree1<>();
+                for (Integer key : keys) {
+                    tree.add(key);
+                }
+                return tree;
+            }
+            case "TreeSet": {
+                TreeSet<Integer> tree = new TreeSet<>();
+                for (Integer key : keys) {
+                    tree.add(key);
+                }
+                return tree;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown implementation: " + implementation);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package alg.bench;
+
+import alg.IntTwoFourTree;
+import alg.LongTwoFourTree;
+import alg.TwoFourTree;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to build a set by inserting n keys one at a time into the primitive trees, against the
+ * generic TwoFourTree with boxed keys. The boxed keys are created in the setup, so the generic tree
+ * is not charged for boxing, and the measured gain of the primitive trees is a lower bound.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class PrimitiveInsertBenchmark {
+    @Param({"IntTwoFourTree", "TwoFourTree<Integer>", "LongTwoFourTree", "TwoFourTree<Long>"})
+    public String implementation;
+
+    /**
+     * sequential: ascending keys; random: uniformly distributed keys.
+     */
+    @Param({"sequential", "random"})
+    public String workload;
+
+    @Param({"100000", "1000000"})
+    public int size;
+
+    private int[] ints;
+    private long[] longs;
+    private Integer[] boxedInts;
+    private Long[] boxedLongs;
+
+    @Setup(Level.Trial)
+    public void generateKeys() {
+        Random random = new Random(42);
+        ints = new int[size];
+        longs = new long[size];
+        boxedInts = new Integer[size];
+        boxedLongs = new Long[size];
+        for (int i = 0; i < size; i++) {
+            switch (workload) {
+                case "sequential":
+                    ints[i] = i;
+                    longs[i] = i;
+                    break;
+                case "random":
+                    ints[i] = random.nextInt();
+                    longs[i] = random.nextLong();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown workload: " + workload);
+            }
+            boxedInts[i] = ints[i];
+            boxedLongs[i] = longs[i];
+        }
+    }
+
+    @Benchmark
+    public Object insert() {
+        switch (implementation) {
+            case "IntTwoFourTree": {
+                IntTwoFourTree tree = new IntTwoFourTree();
+                for (int key : ints) {
+                    tree.add(key);
+                }
+                return tree;
+            }
+            case "TwoFourTree<Integer>": {
+                TwoFourTree<Integer> tree = new TwoFourTree<>();
+                for (Integer key : boxedInts) {
+                    tree.add(key);
+                }
+                return tree;
+            }
+            case "LongTwoFourTree": {
+                LongTwoFourTree tree = new LongTwoFourTree();
+                for (long key : longs) {
+                    tree.add(key);
+                }
+                return tree;
+            }
+            case "TwoFourTree<Long>": {
+                TwoFourTree<Long> tree = new TwoFourTree<>();
+                for (Long key : boxedLongs) {
+                    tree.add(key);
+                }
+                return tree;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown implementation: " + implementation);
+        }
+    }
+}